@@ -30,6 +30,13 @@ tasks.test {
     testLogging {
         showStandardStreams = true
     }
+    // Timing based benchmarks are only run when asked for: ./gradlew test -Pbenchmark
+    if (project.hasProperty("benchmark")) {
+        include("**/*Benchmark.class")
+    }
+    else {
+        exclude("**/*Benchmark.class")
+    }
 }
 
 
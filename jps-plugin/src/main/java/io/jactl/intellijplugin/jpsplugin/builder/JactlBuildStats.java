@@ -0,0 +1,212 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.jpsplugin.builder;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.incremental.messages.CompilerMessage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Timings for each file compiled during a build. For each file we record how long it took
+ * to read, parse, resolve, analyse, and generate the bytecode for, along with the number of
+ * classes looked up and how many of those were already in the cache of parsed classes.
+ * <p>At the end of the build we report a summary (including the slowest files) as an info
+ * message and write the full details to jactl/build-timings.json in the build data directory.
+ * The number of files listed in the summary can be set via the jactl.build.report.count system
+ * property.</p>
+ */
+class JactlBuildStats {
+
+  private static final Logger               LOG       = Logger.getInstance(JactlBuildStats.class);
+  private static final Key<JactlBuildStats> KEY       = Key.create("JACTL_BUILD_STATS");
+  private static final String               FILE_NAME = "jactl" + File.separator + "build-timings.json";
+
+  private final long                       buildStart = System.currentTimeMillis();
+  private final Queue<FileStats>           files      = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Stats for one compilation of a file. Only ever updated by the thread compiling the file.
+   * Lookup time is the time spent finding and parsing other classes and is included in
+   * the time of whichever phase the lookups occurred in.
+   */
+  static class FileStats {
+    final String sourcePath;
+    long         readTime;
+    long         parseTime;
+    long         resolveTime;
+    long         analyseTime;
+    long         generateTime;
+    long         lookupTime;
+    int          lookups;
+    int          lookupHits;
+    int          lookupDepth;     // Lookups can trigger further lookups so we only time the outermost
+    FileStats(String sourcePath) {
+      this.sourcePath = sourcePath;
+    }
+    long totalTime() {
+      return readTime + parseTime + resolveTime + analyseTime + generateTime;
+    }
+  }
+
+  static JactlBuildStats getInstance(CompileContext compileContext) {
+    JactlBuildStats stats = compileContext.getUserData(KEY);
+    if (stats == null) {
+      synchronized (KEY) {
+        stats = compileContext.getUserData(KEY);
+        if (stats == null) {
+          stats = new JactlBuildStats();
+          compileContext.putUserData(KEY, stats);
+        }
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Start recording stats for compiling given file
+   * @param sourcePath  the file
+   * @return the stats for the file
+   */
+  FileStats start(String sourcePath) {
+    FileStats stats = new FileStats(sourcePath);
+    files.add(stats);
+    return stats;
+  }
+
+  /**
+   * Report summary and write the JSON file if any files were compiled during the build
+   * @param compileContext  the compile context
+   * @param builderName     the builder name for the summary message
+   */
+  static void buildFinished(CompileContext compileContext, String builderName) {
+    JactlBuildStats stats = compileContext.getUserData(KEY);
+    if (stats == null || stats.files.isEmpty()) {
+      return;
+    }
+    List<FileStats> files = new ArrayList<>(stats.files);
+    files.sort((a, b) -> Long.compare(b.totalTime(), a.totalTime()));
+    compileContext.processMessage(new CompilerMessage(builderName, BuildMessage.Kind.INFO, summary(files, Math.max(0, Integer.getInteger("jactl.build.report.count", 10)))));
+    File storage = new File(compileContext.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot(), FILE_NAME);
+    storage.getParentFile().mkdirs();
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(storage), StandardCharsets.UTF_8))) {
+      out.write(toJson(stats.buildStart, files));
+    }
+    catch (IOException e) {
+      LOG.warn("Could not write " + storage + ": " + e);
+    }
+  }
+
+  private static String summary(List<FileStats> files, int count) {
+    FileStats total = total(files);
+    StringBuilder sb = new StringBuilder();
+    sb.append("Compiled ").append(files.size()).append(files.size() == 1 ? " file in " : " files in ").append(millis(total.totalTime())).append(" ms")
+      .append(" (read ").append(millis(total.readTime))
+      .append(", parse ").append(millis(total.parseTime))
+      .append(", resolve ").append(millis(total.resolveTime))
+      .append(", analyse ").append(millis(total.analyseTime))
+      .append(", generate ").append(millis(total.generateTime))
+      .append("), ").append(total.lookups).append(" lookups (").append(hitRate(total)).append("% cache hits)");
+    if (count > 0) {
+      sb.append("\nSlowest files:");
+      files.stream().limit(count).forEach(file -> sb.append("\n  ").append(millis(file.totalTime())).append(" ms  ").append(file.sourcePath));
+    }
+    return sb.toString();
+  }
+
+  private static String toJson(long buildStart, List<FileStats> files) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"buildStart\": ").append(buildStart).append(",\n");
+    sb.append("  \"total\": ");
+    appendJson(sb, total(files));
+    sb.append(",\n  \"files\": [");
+    for (int i = 0; i < files.size(); i++) {
+      sb.append(i == 0 ? "\n    " : ",\n    ");
+      appendJson(sb, files.get(i));
+    }
+    sb.append("\n  ]\n}\n");
+    return sb.toString();
+  }
+
+  private static void appendJson(StringBuilder sb, FileStats stats) {
+    sb.append('{');
+    if (stats.sourcePath != null) {
+      sb.append("\"path\": ").append(quote(stats.sourcePath)).append(", ");
+    }
+    sb.append("\"totalMs\": ").append(millis(stats.totalTime()))
+      .append(", \"readMs\": ").append(millis(stats.readTime))
+      .append(", \"parseMs\": ").append(millis(stats.parseTime))
+      .append(", \"resolveMs\": ").append(millis(stats.resolveTime))
+      .append(", \"analyseMs\": ").append(millis(stats.analyseTime))
+      .append(", \"generateMs\": ").append(millis(stats.generateTime))
+      .append(", \"lookupMs\": ").append(millis(stats.lookupTime))
+      .append(", \"lookups\": ").append(stats.lookups)
+      .append(", \"lookupHits\": ").append(stats.lookupHits)
+      .append('}');
+  }
+
+  private static FileStats total(List<FileStats> files) {
+    FileStats total = new FileStats(null);
+    for (FileStats file: files) {
+      total.readTime     += file.readTime;
+      total.parseTime    += file.parseTime;
+      total.resolveTime  += file.resolveTime;
+      total.analyseTime  += file.analyseTime;
+      total.generateTime += file.generateTime;
+      total.lookupTime   += file.lookupTime;
+      total.lookups      += file.lookups;
+      total.lookupHits   += file.lookupHits;
+    }
+    return total;
+  }
+
+  private static String hitRate(FileStats stats) {
+    return stats.lookups == 0 ? "0" : String.format(Locale.ROOT, "%.1f", 100.0 * stats.lookupHits / stats.lookups);
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+  }
+
+  private static String quote(String str) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c: str.toCharArray()) {
+      switch (c) {
+        case '"':  sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n");  break;
+        case '\r': sb.append("\\r");  break;
+        case '\t': sb.append("\\t");  break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
@@ -18,6 +18,7 @@
 package io.jactl.intellijplugin.jpsplugin.builder;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
 import io.jactl.*;
 import io.jactl.compiler.ClassCompiler;
 import io.jactl.compiler.ScriptCompiler;
@@ -34,96 +35,237 @@ import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
-import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
 
 public class JactlBuilder extends ModuleLevelBuilder {
 
   Logger LOG = Logger.getInstance(JactlBuilder.class);
 
+  // Executors shared by all chunks of the current build
+  private static final Key<ExecutorService> COMPILE_EXECUTOR = Key.create("JACTL_COMPILE_EXECUTOR");
+  private static final Key<ExecutorService> WRITE_EXECUTOR   = Key.create("JACTL_WRITE_EXECUTOR");
+
   protected JactlBuilder() {
     super(BuilderCategory.TRANSLATOR);
   }
 
   @Override
-  public ExitCode build(CompileContext compileContext, ModuleChunk moduleChunk, DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder, OutputConsumer outputConsumer) throws IOException {
-    Map<String,ClassDescriptor> parsedClasses   = new HashMap<>();
+  public ExitCode build(CompileContext compileContext, ModuleChunk moduleChunk, DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder, OutputConsumer outputConsumer) throws ProjectBuildException, IOException {
+    Map<String,ClassDescriptor> parsedClasses  = new ConcurrentHashMap<>();       // Classes visible to this chunk
+    JactlDependencies           dependencies   = JactlDependencies.getInstance(compileContext);
+    Set<String>                 changedClasses = ConcurrentHashMap.newKeySet();   // Classes whose signature has changed
+    List<DirtyFile>             dirtyFiles     = new ArrayList<>();
+    for (ModuleBuildTarget target: moduleChunk.getTargets()) {
+      dirtyFilesHolder.getRemovedFiles(target)
+                      .stream()
+                      .filter(path -> path.endsWith(JactlPlugin.DOT_SUFFIX))
+                      .forEach(path -> changedClasses.addAll(dependencies.remove(getCanonicalPath(new File(path)))));
+    }
     dirtyFilesHolder.processDirtyFiles((target, file, sourceRoot) -> {
       if (file.getPath().endsWith(JactlPlugin.DOT_SUFFIX)) {
-        JactlContext context    = createContext(compileContext, moduleChunk, outputConsumer, target, file, parsedClasses);
-        String       sourcePath = file.getCanonicalPath();
-        String       rootPath   = sourceRoot.getRootFile().getCanonicalPath();
-        if (!sourcePath.startsWith(rootPath)) {
-          error(compileContext, "File " + sourcePath + " should be under root " + rootPath, sourcePath);
-          return true;
-        }
-        String relativePath = JactlPlugin.stripSeparatedPrefix(sourcePath, rootPath, File.separator);
-        int    slashIdx     = relativePath.lastIndexOf(File.separatorChar);
-        String className    = relativePath.substring(slashIdx + 1);
-        String pkgName      = relativePath.substring(0, slashIdx <= 0 ? 0 : slashIdx).replace(File.separatorChar, '.');
-        className = JactlPlugin.removeSuffix(className);
-        String source = getFileContent(compileContext, sourcePath);
-        if (source == null) {
-          return true;
-        }
-        Stmt.ClassDecl classDecl = parseAndResolve(compileContext, source, sourcePath, className, pkgName, context);
-        if (classDecl == null) {
-          return true;
+        dirtyFiles.add(new DirtyFile(target, file, sourceRoot));
+      }
+      return true;
+    });
+
+    JactlOutputWriter writer = new JactlOutputWriter(compileContext, outputConsumer, getExecutor(compileContext, WRITE_EXECUTOR, "Jactl Class Writer"));
+    if (getParallelism(compileContext) <= 1 || dirtyFiles.size() <= 1) {
+      dirtyFiles.forEach(dirtyFile -> compile(compileContext, compileContext, moduleChunk, writer, dirtyFile, parsedClasses, changedClasses));
+      writer.finish(msg -> error(compileContext, msg));
+      return markDependentsDirty(compileContext, moduleChunk, dependencies, changedClasses);
+    }
+
+    // Compile files in parallel but buffer the messages for each file so that we can report
+    // them in the same order as we would if we were compiling sequentially
+    ExecutorService        executor = getExecutor(compileContext, COMPILE_EXECUTOR, "Jactl Builder");
+    List<BufferedMessages> messages = new ArrayList<>();
+    List<Future<?>>        futures  = new ArrayList<>();
+    for (DirtyFile dirtyFile: dirtyFiles) {
+      BufferedMessages fileMessages = new BufferedMessages();
+      messages.add(fileMessages);
+      futures.add(executor.submit(() -> {
+        if (!compileContext.getCancelStatus().isCanceled()) {
+          compile(compileContext, fileMessages, moduleChunk, writer, dirtyFile, parsedClasses, changedClasses);
         }
+      }));
+    }
+    try {
+      for (int i = 0; i < futures.size(); i++) {
         try {
-          Analyser analyser = new Analyser(context);
-          analyser.analyseClass(classDecl);
-          if (classDecl.isScriptClass()) {
-            ScriptCompiler compiler = new ScriptCompiler(source, context, classDecl);
-            compiler.compile();
-            LOG.warn("Compilation of script " + className + " finished");
-          }
-          else {
-            ClassCompiler compiler = new ClassCompiler(source, context, pkgName, classDecl, className + JactlPlugin.DOT_SUFFIX);
-            compiler.compileClass();
-            LOG.warn("Compilation of class " + className + " finished");
-          }
+          futures.get(i).get();
         }
-        catch (CompileError e) {
-          e.getErrors().forEach(err -> error(compileContext, err, sourcePath));
+        catch (ExecutionException e) {
+          error(messages.get(i), JactlPlugin.stackTrace(e.getCause()), getCanonicalPath(dirtyFiles.get(i).file));
         }
-        catch (Throwable e) {
-          error(compileContext, JactlPlugin.stackTrace(e), sourcePath);
+        messages.get(i).flush(compileContext);
+      }
+    }
+    catch (InterruptedException e) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new ProjectBuildException(e);
+    }
+    writer.finish(msg -> error(compileContext, msg));
+    return markDependentsDirty(compileContext, moduleChunk, dependencies, changedClasses);
+  }
+
+  @Override
+  public void buildFinished(CompileContext compileContext) {
+    JactlDependencies.buildFinished(compileContext);
+    JactlBuildStats.buildFinished(compileContext, getBuilderName());
+  }
+
+  /**
+   * Mark files that depend on classes whose signatures have changed as dirty. Files in the
+   * current chunk need another pass while files in other chunks will be compiled when their
+   * chunk is built.
+   * @return ADDITIONAL_PASS_REQUIRED if files in the current chunk have been marked
+   */
+  private ExitCode markDependentsDirty(CompileContext compileContext, ModuleChunk moduleChunk, JactlDependencies dependencies, Set<String> changedClasses) throws IOException {
+    if (changedClasses.isEmpty()) {
+      return null;
+    }
+    boolean additionalPass = false;
+    for (String sourcePath: dependencies.getDependents(changedClasses)) {
+      File                     file           = new File(sourcePath);
+      JavaSourceRootDescriptor rootDescriptor = compileContext.getProjectDescriptor().getBuildRootIndex().findJavaRootDescriptor(compileContext, file);
+      if (rootDescriptor == null || !file.exists()) {
+        continue;
+      }
+      boolean inChunk = moduleChunk.getTargets().contains(rootDescriptor.target);
+      FSOperations.markDirty(compileContext, inChunk ? CompilationRound.NEXT : CompilationRound.CURRENT, file);
+      additionalPass |= inChunk;
+    }
+    return additionalPass ? ExitCode.ADDITIONAL_PASS_REQUIRED : null;
+  }
+
+  /**
+   * Number of files to compile in parallel (see JpsJactlSettings.getBuildParallelism())
+   */
+  private static int getParallelism(CompileContext compileContext) {
+    return JpsJactlSettings.getSettings(compileContext.getProjectDescriptor().getProject()).getBuildParallelism();
+  }
+
+  /**
+   * Get the executor for the current build. The same executor is used for every chunk so
+   * that chunks built in parallel share the same bound rather than each having their own.
+   */
+  private static ExecutorService getExecutor(CompileContext compileContext, Key<ExecutorService> key, String name) {
+    ExecutorService executor = compileContext.getUserData(key);
+    if (executor == null) {
+      synchronized (key) {
+        executor = compileContext.getUserData(key);
+        if (executor == null) {
+          executor = SharedThreadPool.getInstance().createBoundedExecutor(name, getParallelism(compileContext));
+          compileContext.putUserData(key, executor);
         }
       }
-      return true;
-    });
-    return null;
+    }
+    return executor;
   }
 
-  private Class<?> addClass(Map<String,ClassDescriptor> parsedClasses, ClassDescriptor descriptor, byte[] bytes, File sourceFile, OutputConsumer outputConsumer, ModuleBuildTarget target, CompileContext compileContext) {
-    parsedClasses.put(descriptor.getPackagedName().replace('.', '/'), descriptor);
-    target.getOutputRoots(compileContext)
-          .forEach(outputRoot -> {
-            File outputFile = new File(outputRoot, descriptor.getInternalName() + ".class");
-            try {
-              outputFile.getParentFile().mkdirs();
-              try (OutputStream stream = new FileOutputStream(outputFile)) {
-                stream.write(bytes);
-              }
-              outputConsumer.registerCompiledClass(target, new CompiledClass(outputFile, Arrays.asList(sourceFile), descriptor.getJavaPackagedName(), new BinaryContent(bytes)));
-            }
-            catch (IOException e) {
-              error(compileContext, e.getMessage());
-            }
-          });
+  private static class DirtyFile {
+    final ModuleBuildTarget        target;
+    final File                     file;
+    final JavaSourceRootDescriptor sourceRoot;
+    DirtyFile(ModuleBuildTarget target, File file, JavaSourceRootDescriptor sourceRoot) {
+      this.target     = target;
+      this.file       = file;
+      this.sourceRoot = sourceRoot;
+    }
+  }
+
+  /**
+   * Messages for a file being compiled in parallel with other files
+   */
+  private static class BufferedMessages implements MessageHandler {
+    private final List<BuildMessage> messages = new ArrayList<>();
+    @Override public synchronized void processMessage(BuildMessage msg) { messages.add(msg); }
+    synchronized void flush(MessageHandler handler) {
+      messages.forEach(handler::processMessage);
+      messages.clear();
+    }
+  }
+
+  private void compile(CompileContext compileContext, MessageHandler messages, ModuleChunk moduleChunk, JactlOutputWriter writer, DirtyFile dirtyFile, Map<String,ClassDescriptor> parsedClasses, Set<String> changedClasses) {
+    File                        file             = dirtyFile.file;
+    String                      sourcePath       = getCanonicalPath(file);
+    String                      rootPath         = getCanonicalPath(dirtyFile.sourceRoot.getRootFile());
+    JactlBuildStats.FileStats   stats            = JactlBuildStats.getInstance(compileContext).start(sourcePath);
+    Set<String>                 fileDependencies = ConcurrentHashMap.newKeySet();
+    Map<String,ClassDescriptor> fileClasses      = new ConcurrentHashMap<>();
+    JactlContext                context          = createContext(compileContext, messages, moduleChunk, writer, dirtyFile.target, file, parsedClasses, fileDependencies, fileClasses, stats);
+    if (!sourcePath.startsWith(rootPath)) {
+      error(messages, "File " + sourcePath + " should be under root " + rootPath, sourcePath);
+      return;
+    }
+    String relativePath = JactlPlugin.stripSeparatedPrefix(sourcePath, rootPath, File.separator);
+    int    slashIdx     = relativePath.lastIndexOf(File.separatorChar);
+    String className    = relativePath.substring(slashIdx + 1);
+    String pkgName      = relativePath.substring(0, slashIdx <= 0 ? 0 : slashIdx).replace(File.separatorChar, '.');
+    className = JactlPlugin.removeSuffix(className);
+    long   start  = System.nanoTime();
+    String source = getFileContent(messages, sourcePath);
+    stats.readTime = System.nanoTime() - start;
+    if (source == null) {
+      return;
+    }
+    Stmt.ClassDecl classDecl = parseAndResolve(compileContext, messages, source, sourcePath, className, pkgName, context, stats);
+    if (classDecl == null) {
+      return;
+    }
+    try {
+      start = System.nanoTime();
+      Analyser analyser = new Analyser(context);
+      analyser.analyseClass(classDecl);
+      stats.analyseTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      if (classDecl.isScriptClass()) {
+        ScriptCompiler compiler = new ScriptCompiler(source, context, classDecl);
+        compiler.compile();
+      }
+      else {
+        ClassCompiler compiler = new ClassCompiler(source, context, pkgName, classDecl, className + JactlPlugin.DOT_SUFFIX);
+        compiler.compileClass();
+      }
+      stats.generateTime = System.nanoTime() - start;
+      Map<String,String> signatures = new HashMap<>();
+      fileClasses.forEach((name, descriptor) -> signatures.put(name, JactlDependencies.signature(descriptor, source)));
+      changedClasses.addAll(JactlDependencies.getInstance(compileContext).update(sourcePath, fileDependencies, signatures));
+    }
+    catch (CompileError e) {
+      e.getErrors().forEach(err -> error(messages, err, sourcePath));
+    }
+    catch (Throwable e) {
+      error(messages, JactlPlugin.stackTrace(e), sourcePath);
+    }
+  }
+
+  private static String getCanonicalPath(File file) {
+    try {
+      return file.getCanonicalPath();
+    }
+    catch (IOException e) {
+      return file.getAbsolutePath();
+    }
+  }
+
+  private Class<?> addClass(Map<String,ClassDescriptor> parsedClasses, Map<String,ClassDescriptor> fileClasses, ClassDescriptor descriptor, byte[] bytes, File sourceFile, JactlOutputWriter writer, ModuleBuildTarget target) {
+    String name = descriptor.getPackagedName().replace('.', '/');
+    parsedClasses.put(name, descriptor);
+    fileClasses.put(name, descriptor);
+    writer.write(target, descriptor, bytes, sourceFile);
     // We are writing bytes to .class file so don't need to create class in memory
     return null;
   }
@@ -148,12 +290,14 @@ public class JactlBuilder extends ModuleLevelBuilder {
     return 50;
   }
 
-  private JactlContext createContext(CompileContext compileContext, ModuleChunk moduleChunk, OutputConsumer outputConsumer, ModuleBuildTarget target, File sourceFile, Map<String,ClassDescriptor> parsedClasses) {
-    List<String> sourceRoots = moduleChunk.getModules()
-                                          .stream()
-                                          .flatMap(module -> module.getSourceRoots().stream().map(JpsModuleSourceRoot::getPath))
-                                          .map(Path::toString)
-                                          .collect(Collectors.toList());
+  /**
+   * Create JactlContext for compiling given file. Any classes looked up while compiling the file
+   * are added to dependencies and any classes compiled are added to fileClasses. Lookups are
+   * counted in the stats for the file.
+   */
+  private JactlContext createContext(CompileContext compileContext, MessageHandler messages, ModuleChunk moduleChunk, JactlOutputWriter writer, ModuleBuildTarget target, File sourceFile,
+                                     Map<String,ClassDescriptor> parsedClasses, Set<String> dependencies, Map<String,ClassDescriptor> fileClasses, JactlBuildStats.FileStats stats) {
+    JactlSourceIndex sourceIndex = JactlSourceIndex.getInstance(compileContext, moduleChunk);
 
     String baseJavaPkg     = JactlPlugin.BASE_JACTL_PKG;   // Should come from project configuration?
     String baseJavaPkgFile = JactlPlugin.BASE_JACTL_PKG_PATH;
@@ -163,9 +307,12 @@ public class JactlBuilder extends ModuleLevelBuilder {
                                     .javaPackage(baseJavaPkg)
                                     .evaluateConstExprs(false)
                                     .idePlugin(true)
-                                    .packageChecker(pkgName -> sourceRoots.stream().anyMatch(root -> Files.isDirectory(Path.of(root, pkgName.replace('.', File.separatorChar)))))
-                                    .classLookup(name -> lookup(parsedClasses, jactlContextRef.get(), compileContext, name, baseJavaPkgFile, sourceRoots))
-                                    .classAdder((descriptor, bytes) -> addClass(parsedClasses, descriptor, bytes, sourceFile, outputConsumer, target, compileContext))
+                                    .packageChecker(sourceIndex::isPackage)
+                                    .classLookup(name -> {
+                                      dependencies.add(name);
+                                      return lookup(parsedClasses, jactlContextRef.get(), compileContext, messages, name, baseJavaPkgFile, sourceIndex, stats);
+                                    })
+                                    .classAdder((descriptor, bytes) -> addClass(parsedClasses, fileClasses, descriptor, bytes, sourceFile, writer, target))
                                     .build());
     return jactlContextRef.get();
   }
@@ -173,19 +320,36 @@ public class JactlBuilder extends ModuleLevelBuilder {
   /**
    * Get ClassDescriptor for given class. If we already have a cached version then return that,
    * otherwise find the file for the class and parse it.
-   * @param parsedClasses    cache of already parsed classes
+   * @param parsedClasses    cache of already parsed classes (shared between threads)
    * @param jactlContext     context
-   * @param compileContext   Intellij compileContext for reporting any errors
+   * @param compileContext   Intellij compileContext
+   * @param messages         where to report any errors
    * @param internalName     internal name of class (e.g. io/jactl/pkg/a/b/c/_$j$Script123$X$Y$Z)
    * @param baseJavaPkgFile  base Java package in file form (e.g. io/jactl/pkg)
-   * @param sourceRoots      list of source roots for project/module
+   * @param sourceIndex      index of the files under the source roots for the module chunk
+   * @param stats            stats for the file being compiled
    * @return the ClassDescriptor
    */
-  private ClassDescriptor lookup(Map<String,ClassDescriptor> parsedClasses, JactlContext jactlContext, CompileContext compileContext, String internalName, String baseJavaPkgFile, List<String> sourceRoots) {
+  private ClassDescriptor lookup(Map<String,ClassDescriptor> parsedClasses, JactlContext jactlContext, CompileContext compileContext, MessageHandler messages, String internalName, String baseJavaPkgFile, JactlSourceIndex sourceIndex, JactlBuildStats.FileStats stats) {
+    stats.lookups++;
     ClassDescriptor descriptor = parsedClasses.get(internalName);
     if (descriptor != null) {
+      stats.lookupHits++;
       return descriptor;
     }
+    long start = System.nanoTime();
+    stats.lookupDepth++;
+    try {
+      return findAndParse(parsedClasses, jactlContext, compileContext, messages, internalName, baseJavaPkgFile, sourceIndex);
+    }
+    finally {
+      if (--stats.lookupDepth == 0) {
+        stats.lookupTime += System.nanoTime() - start;
+      }
+    }
+  }
+
+  private ClassDescriptor findAndParse(Map<String,ClassDescriptor> parsedClasses, JactlContext jactlContext, CompileContext compileContext, MessageHandler messages, String internalName, String baseJavaPkgFile, JactlSourceIndex sourceIndex) {
     // We need to find the file containing the class.
     // First we get the directory part of the name.
     String dir      = JactlPlugin.dirName(internalName);
@@ -205,37 +369,31 @@ public class JactlBuilder extends ModuleLevelBuilder {
 
     // Strip io/jactl/pkg from dir
     dir = JactlPlugin.stripSeparatedPrefix(dir, baseJavaPkgFile, "/");
-    final String fileName = fileBase;
-    final String dirName  = dir;
     // Find file in sourceRoots
-    String filePath = sourceRoots.stream()
-                                 .map(root -> root + File.separatorChar + dirName + File.separatorChar + fileName)
-                                 .filter(p -> new File(p).exists())
-                                 .findFirst()
-                                 .orElse(null);
+    String filePath = sourceIndex.findFile(dir, fileBase);
     if (filePath == null) {
       return null;
     }
     String pkgName = dir.replace(File.separatorChar, '.');
-    Stmt.ClassDecl classDecl = parseAndResolve(compileContext, filePath, className, pkgName, jactlContext);
+    Stmt.ClassDecl classDecl = parseAndResolve(compileContext, messages, filePath, className, pkgName, jactlContext);
     if (classDecl == null) {
       return null;
     }
-    descriptor = classDecl.classDescriptor;
-    parsedClasses.put(internalName, descriptor);
-    return descriptor;
+    // Another thread may have parsed the same class in the meantime so use whichever got there first
+    ClassDescriptor existing = parsedClasses.putIfAbsent(internalName, classDecl.classDescriptor);
+    return existing == null ? classDecl.classDescriptor : existing;
   }
 
-  private void error(CompileContext compileContext, String msg) {
-    compileContext.processMessage(new CompilerMessage(getBuilderName(), BuildMessage.Kind.ERROR, msg));
+  private void error(MessageHandler messages, String msg) {
+    messages.processMessage(new CompilerMessage(getBuilderName(), BuildMessage.Kind.ERROR, msg));
   }
 
-  private void error(CompileContext compileContext, String msg, String sourcePath) {
-    compileContext.processMessage(new CompilerMessage(getBuilderName(), BuildMessage.Kind.ERROR, msg, sourcePath));
+  private void error(MessageHandler messages, String msg, String sourcePath) {
+    messages.processMessage(new CompilerMessage(getBuilderName(), BuildMessage.Kind.ERROR, msg, sourcePath));
   }
 
-  private void error(CompileContext compileContext, CompileError err, String sourcePath) {
-    err.getErrors().forEach(e -> compileContext.processMessage(new CompilerMessage(getBuilderName(),
+  private void error(MessageHandler messages, CompileError err, String sourcePath) {
+    err.getErrors().forEach(e -> messages.processMessage(new CompilerMessage(getBuilderName(),
                                                                                    BuildMessage.Kind.ERROR,
                                                                                    e.getErrorMessage(),
                                                                                    sourcePath,
@@ -246,27 +404,31 @@ public class JactlBuilder extends ModuleLevelBuilder {
                                                                                    e.getLocation().getColumn())));
   }
 
-  private Stmt.ClassDecl parseAndResolve(CompileContext compileContext, String sourcePath, String className, String packageName, JactlContext jactlContext) {
-    String source = getFileContent(compileContext, sourcePath);
+  private Stmt.ClassDecl parseAndResolve(CompileContext compileContext, MessageHandler messages, String sourcePath, String className, String packageName, JactlContext jactlContext) {
+    String source = getFileContent(messages, sourcePath);
     if (source == null) return null;
-    return parseAndResolve(compileContext, source, sourcePath, className, packageName, jactlContext);
+    return parseAndResolve(compileContext, messages, source, sourcePath, className, packageName, jactlContext, null);
   }
 
   @Nullable
-  private String getFileContent(CompileContext compileContext, String sourcePath) {
+  private String getFileContent(MessageHandler messages, String sourcePath) {
     String source;
     try {
       source = Files.readString(Path.of(sourcePath));
     }
     catch (IOException e) {
-      error(compileContext, JactlBundle.message("build.io.error", sourcePath, e.getClass().getName()), sourcePath);
+      error(messages, JactlBundle.message("build.io.error", sourcePath, e.getClass().getName()), sourcePath);
       return null;
     }
     return source;
   }
 
-  private Stmt.ClassDecl parseAndResolve(CompileContext compileContext, String source, String sourcePath, String scriptName, String packageName, JactlContext jactlContext) {
+  /**
+   * Parse and resolve given source, recording the time taken in stats (if not null)
+   */
+  private Stmt.ClassDecl parseAndResolve(CompileContext compileContext, MessageHandler messages, String source, String sourcePath, String scriptName, String packageName, JactlContext jactlContext, JactlBuildStats.FileStats stats) {
     try {
+      long start = System.nanoTime();
       scriptName = JactlPlugin.SCRIPT_PREFIX + scriptName;
       Tokeniser      tokeniser    = new Tokeniser(source);
       BuilderImpl    tokenBuilder = new BuilderImpl(tokeniser) {
@@ -276,27 +438,34 @@ public class JactlBuilder extends ModuleLevelBuilder {
       };
       Parser         parser       = new Parser(tokenBuilder, jactlContext, packageName);
       Stmt.ClassDecl script       = parser.parseScriptOrClass(scriptName);
+      if (stats != null) {
+        stats.parseTime = System.nanoTime() - start;
+        start = System.nanoTime();
+      }
 
       if (tokenBuilder.hasErrors()) {
-        tokenBuilder.getErrors().forEach(err -> error(compileContext, err, sourcePath));
+        tokenBuilder.getErrors().forEach(err -> error(messages, err, sourcePath));
         return null;
       }
 
       JpsJactlSettings   settings = JpsJactlSettings.getSettings(compileContext.getProjectDescriptor().getProject());
-      Map<String,Object> globals  = settings.getGlobals();
+      Map<String,Object> globals  = settings.getGlobals(compileContext);
 
       Resolver           resolver = new Resolver(jactlContext, globals, script.location);
       List<CompileError> errs     = resolver.resolveScriptOrClass(script, true, scriptName, packageName);
+      if (stats != null) {
+        stats.resolveTime = System.nanoTime() - start;
+      }
       if (errs.isEmpty()) {
         return script;
       }
-      errs.forEach(e -> error(compileContext, e, sourcePath));
+      errs.forEach(e -> error(messages, e, sourcePath));
     }
     catch (GlobalsException error) {
-      error(compileContext, error.getMessage(), error.getGlobalsScriptPath());
+      error(messages, error.getMessage(), error.getGlobalsScriptPath());
     }
     catch (CompileError error) {
-      error(compileContext, error, sourcePath);
+      error(messages, error, sourcePath);
     }
     return null;
   }
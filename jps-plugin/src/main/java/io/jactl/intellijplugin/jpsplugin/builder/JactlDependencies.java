@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.jpsplugin.builder;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import io.jactl.runtime.ClassDescriptor;
+import io.jactl.runtime.FunctionDescriptor;
+import org.jetbrains.jps.incremental.CompileContext;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record, for each compiled Jactl file, of the Jactl classes the file depends on (the
+ * classes looked up via the JactlContext classLookup while compiling the file) and of the
+ * signature of each class compiled from the file. When a class is recompiled with a
+ * different signature (or its file is deleted) we use this to find the files that depend
+ * on it so that they can be recompiled as well. If only method bodies change then the
+ * signature stays the same and nothing else needs to be recompiled.
+ * <p>The record is kept in the build data directory and is loaded when first needed
+ * during a build and saved at the end of the build.</p>
+ */
+class JactlDependencies {
+
+  private static final Logger                  LOG       = Logger.getInstance(JactlDependencies.class);
+  private static final Key<JactlDependencies>  KEY       = Key.create("JACTL_DEPENDENCIES");
+  private static final int                     VERSION   = 1;
+  private static final String                  FILE_NAME = "jactl" + File.separator + "dependencies.dat";
+
+  private final File                  storage;
+  private final Map<String,FileInfo>  files    = new ConcurrentHashMap<>();     // Keyed by source path
+  private final Set<String>           compiled = ConcurrentHashMap.newKeySet();  // Files compiled during this build
+  private volatile boolean            modified;
+
+  private static class FileInfo {
+    final Set<String>        dependencies;    // Classes used by file (a/b/c/X$Y)
+    final Map<String,String> signatures;      // Signature hash for each class in file
+    FileInfo(Set<String> dependencies, Map<String,String> signatures) {
+      this.dependencies = dependencies;
+      this.signatures   = signatures;
+    }
+  }
+
+  private JactlDependencies(File storage) {
+    this.storage = storage;
+  }
+
+  static JactlDependencies getInstance(CompileContext compileContext) {
+    JactlDependencies dependencies = compileContext.getUserData(KEY);
+    if (dependencies == null) {
+      synchronized (KEY) {
+        dependencies = compileContext.getUserData(KEY);
+        if (dependencies == null) {
+          dependencies = new JactlDependencies(new File(compileContext.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot(), FILE_NAME));
+          dependencies.load();
+          compileContext.putUserData(KEY, dependencies);
+        }
+      }
+    }
+    return dependencies;
+  }
+
+  /**
+   * Save the dependencies if they have been loaded and modified during the build
+   */
+  static void buildFinished(CompileContext compileContext) {
+    JactlDependencies dependencies = compileContext.getUserData(KEY);
+    if (dependencies != null) {
+      dependencies.save();
+    }
+  }
+
+  /**
+   * Record the result of successfully compiling a file
+   * @param sourcePath    the source file
+   * @param dependencies  the classes the file depends on
+   * @param signatures    the signature hash of each class compiled from the file
+   * @return the classes whose signatures have changed (including new classes and classes
+   *         no longer in the file)
+   */
+  Set<String> update(String sourcePath, Set<String> dependencies, Map<String,String> signatures) {
+    compiled.add(sourcePath);
+    FileInfo previous = files.put(sourcePath, new FileInfo(new HashSet<>(dependencies), new HashMap<>(signatures)));
+    modified = true;
+    Set<String> changed = new HashSet<>();
+    Map<String,String> previousSignatures = previous == null ? Collections.emptyMap() : previous.signatures;
+    signatures.forEach((className, signature) -> {
+      if (!signature.equals(previousSignatures.get(className))) {
+        changed.add(className);
+      }
+    });
+    previousSignatures.keySet().stream().filter(className -> !signatures.containsKey(className)).forEach(changed::add);
+    return changed;
+  }
+
+  /**
+   * Forget a file that has been deleted
+   * @param sourcePath  the source file
+   * @return the classes that were in the file
+   */
+  Set<String> remove(String sourcePath) {
+    FileInfo previous = files.remove(sourcePath);
+    if (previous == null) {
+      return Collections.emptySet();
+    }
+    modified = true;
+    return previous.signatures.keySet();
+  }
+
+  /**
+   * Find the files that depend on any of the given classes (excluding files that have
+   * already been compiled during this build)
+   * @param classNames  the classes
+   * @return the source paths of the dependent files
+   */
+  List<String> getDependents(Set<String> classNames) {
+    List<String> dependents = new ArrayList<>();
+    files.forEach((sourcePath, info) -> {
+      if (!compiled.contains(sourcePath) && info.dependencies.stream().anyMatch(classNames::contains)) {
+        dependents.add(sourcePath);
+      }
+    });
+    return dependents;
+  }
+
+  /**
+   * Get a hash of the parts of the class that other classes can depend on: its base class,
+   * fields, methods and inner classes. For methods this includes whether they are async
+   * since that depends on the method body and changes how calls to the method are compiled.
+   * If the class has constants with values that we can't compare then the hash includes the
+   * source code so that any change to the file counts as a change to the signature.
+   * @param descriptor  the class
+   * @param source      the source code of the file containing the class
+   * @return the hash
+   */
+  static String signature(ClassDescriptor descriptor, String source) {
+    StringBuilder   sb   = new StringBuilder();
+    ClassDescriptor base = descriptor.getBaseClass();
+    sb.append("class ").append(descriptor.getPackagedName()).append(" extends ").append(base == null ? "" : base.getPackagedName()).append('\n');
+    new TreeMap<>(descriptor.getAllFields()).forEach((name, type) -> sb.append("field ").append(name).append(' ').append(type).append('\n'));
+    boolean[] includeSource = new boolean[1];
+    new TreeMap<>(descriptor.getAllStaticFields()).forEach((name, field) -> {
+      Object value = field.second;
+      sb.append("const ").append(name).append(' ').append(field.first);
+      if (value instanceof Number || value instanceof String || value instanceof Boolean) {
+        sb.append(" = ").append(value);
+      }
+      else {
+        includeSource[0] = true;
+      }
+      sb.append('\n');
+    });
+    descriptor.getAllMethods()
+              .sorted((a, b) -> a.getKey().compareTo(b.getKey()))
+              .forEach(entry -> {
+                FunctionDescriptor f = entry.getValue();
+                sb.append(f.isStatic ? "static " : "").append(entry.getKey()).append('(');
+                for (int i = 0; i < f.paramNames.size(); i++) {
+                  sb.append(f.paramNames.get(i)).append(' ').append(f.paramTypes.get(i)).append(',');
+                }
+                sb.append(") ").append(f.returnType).append(" mandatory=").append(f.mandatoryParams);
+                sb.append(" async=").append(f.isAsync).append(" asyncArgs=").append(f.asyncArgs == null ? null : new TreeSet<>(f.asyncArgs)).append('\n');
+              });
+    descriptor.getInnerClasses().stream()
+              .map(ClassDescriptor::getPackagedName)
+              .sorted()
+              .forEach(name -> sb.append("inner ").append(name).append('\n'));
+    if (includeSource[0]) {
+      sb.append(source);
+    }
+    return hash(sb.toString());
+  }
+
+  private static String hash(String str) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return new BigInteger(1, digest.digest(str.getBytes(StandardCharsets.UTF_8))).toString(16);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void load() {
+    if (!storage.isFile()) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storage)))) {
+      if (in.readInt() != VERSION) {
+        return;
+      }
+      for (int fileCount = in.readInt(); fileCount > 0; fileCount--) {
+        String      sourcePath   = in.readUTF();
+        Set<String> dependencies = new HashSet<>();
+        for (int count = in.readInt(); count > 0; count--) {
+          dependencies.add(in.readUTF());
+        }
+        Map<String,String> signatures = new HashMap<>();
+        for (int count = in.readInt(); count > 0; count--) {
+          signatures.put(in.readUTF(), in.readUTF());
+        }
+        files.put(sourcePath, new FileInfo(dependencies, signatures));
+      }
+    }
+    catch (IOException e) {
+      // Treat as though we have no dependencies. Files will be compiled anyway if
+      // JPS has lost its own state.
+      LOG.warn("Could not read " + storage + ": " + e);
+      files.clear();
+    }
+  }
+
+  private synchronized void save() {
+    if (!modified) {
+      return;
+    }
+    storage.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storage)))) {
+      out.writeInt(VERSION);
+      out.writeInt(files.size());
+      for (Map.Entry<String,FileInfo> entry: files.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().dependencies.size());
+        for (String dependency: entry.getValue().dependencies) {
+          out.writeUTF(dependency);
+        }
+        out.writeInt(entry.getValue().signatures.size());
+        for (Map.Entry<String,String> signature: entry.getValue().signatures.entrySet()) {
+          out.writeUTF(signature.getKey());
+          out.writeUTF(signature.getValue());
+        }
+      }
+      modified = false;
+    }
+    catch (IOException e) {
+      LOG.warn("Could not write " + storage + ": " + e);
+      storage.delete();
+    }
+  }
+}
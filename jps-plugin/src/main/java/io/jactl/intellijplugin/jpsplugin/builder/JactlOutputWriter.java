@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.jpsplugin.builder;
+
+import io.jactl.runtime.ClassDescriptor;
+import org.jetbrains.jps.incremental.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Writes the generated class files for a module chunk. The writes are done asynchronously
+ * and we then wait for them all to finish at the end of the chunk build.
+ * <p>Every class we are given is written, even if its bytes are the same as the previous
+ * build's output, so a no-op rebuild still rewrites every class file. Skipping unchanged
+ * outputs is not possible here since JPS deletes the outputs of each dirty source file
+ * before the builders run (and a rebuild clears the output roots) so there is never an
+ * existing class file left to keep.</p>
+ * <p>Classes are registered with the OutputConsumer since JPS uses this to keep track of
+ * which outputs belong to which source files.</p>
+ */
+class JactlOutputWriter {
+
+  private final CompileContext                    compileContext;
+  private final ModuleLevelBuilder.OutputConsumer outputConsumer;
+  private final ExecutorService                   executor;
+  private final List<Future<?>>                   writes = Collections.synchronizedList(new ArrayList<>());
+
+  JactlOutputWriter(CompileContext compileContext, ModuleLevelBuilder.OutputConsumer outputConsumer, ExecutorService executor) {
+    this.compileContext = compileContext;
+    this.outputConsumer = outputConsumer;
+    this.executor       = executor;
+  }
+
+  /**
+   * Write class to each output root and register it
+   * @param target      the build target
+   * @param descriptor  the class
+   * @param bytes       the bytecode
+   * @param sourceFile  the source file for the class
+   */
+  void write(ModuleBuildTarget target, ClassDescriptor descriptor, byte[] bytes, File sourceFile) {
+    for (File outputRoot: target.getOutputRoots(compileContext)) {
+      File outputFile = new File(outputRoot, descriptor.getInternalName() + ".class");
+      writes.add(executor.submit(() -> {
+        outputFile.getParentFile().mkdirs();
+        try (OutputStream stream = new FileOutputStream(outputFile)) {
+          stream.write(bytes);
+        }
+        return null;
+      }));
+      // OutputConsumer is not thread-safe
+      synchronized (outputConsumer) {
+        outputConsumer.registerCompiledClass(target, new CompiledClass(outputFile, Arrays.asList(sourceFile), descriptor.getJavaPackagedName(), new BinaryContent(bytes)));
+      }
+    }
+  }
+
+  /**
+   * Wait for all writes to finish, reporting any errors
+   * @param errorHandler  invoked with the message for any write that failed
+   */
+  void finish(Consumer<String> errorHandler) throws ProjectBuildException {
+    List<Future<?>> pending;
+    synchronized (writes) {
+      pending = new ArrayList<>(writes);
+      writes.clear();
+    }
+    try {
+      for (Future<?> write: pending) {
+        try {
+          write.get();
+        }
+        catch (ExecutionException e) {
+          errorHandler.accept(e.getCause().getMessage());
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      pending.forEach(write -> write.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new ProjectBuildException(e);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.jpsplugin.builder;
+
+import com.intellij.openapi.util.Key;
+import io.jactl.intellijplugin.common.JactlPlugin;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the packages (directories) and Jactl files under the source roots of a module
+ * chunk. The source roots are scanned once per build and the index is then shared by the
+ * JactlContexts of all files in the chunk so that checking for a package or finding the
+ * file for a class does not need to hit the file system for every source root each time.
+ */
+class JactlSourceIndex {
+
+  private static final Key<Map<List<String>,JactlSourceIndex>> KEY = Key.create("JACTL_SOURCE_INDEX");
+
+  private final Set<String>        packages = new HashSet<>();   // a.b.c
+  private final Map<String,String> files    = new HashMap<>();   // a/b/c/X.jactl -> path of file
+
+  private JactlSourceIndex(List<String> sourceRoots) {
+    sourceRoots.forEach(this::scan);
+  }
+
+  /**
+   * Get the index for the source roots of the given chunk (scanning them if this is
+   * the first time they have been needed during this build)
+   */
+  static JactlSourceIndex getInstance(CompileContext compileContext, ModuleChunk moduleChunk) {
+    List<String> sourceRoots = moduleChunk.getModules()
+                                          .stream()
+                                          .flatMap(module -> module.getSourceRoots().stream().map(JpsModuleSourceRoot::getPath))
+                                          .map(Path::toString)
+                                          .collect(Collectors.toList());
+    Map<List<String>,JactlSourceIndex> indexes = compileContext.getUserData(KEY);
+    if (indexes == null) {
+      synchronized (KEY) {
+        indexes = compileContext.getUserData(KEY);
+        if (indexes == null) {
+          indexes = new ConcurrentHashMap<>();
+          compileContext.putUserData(KEY, indexes);
+        }
+      }
+    }
+    return indexes.computeIfAbsent(sourceRoots, JactlSourceIndex::new);
+  }
+
+  /**
+   * Check whether package exists under any source root
+   * @param pkgName  the package name (a.b.c)
+   * @return true if package exists
+   */
+  boolean isPackage(String pkgName) {
+    return packages.contains(pkgName);
+  }
+
+  /**
+   * Find Jactl file in given directory. If the file exists under more than one source root
+   * we return the one under the first source root.
+   * @param dirName   the directory relative to the source roots (a/b/c)
+   * @param fileName  the file name (X.jactl)
+   * @return the path of the file or null if it doesn't exist
+   */
+  String findFile(String dirName, String fileName) {
+    String dir   = dirName.replace(File.separatorChar, '/');
+    int    start = 0;
+    int    end   = dir.length();
+    while (start < end && dir.charAt(start) == '/') { start++; }
+    while (end > start && dir.charAt(end - 1) == '/') { end--; }
+    return files.get(start == end ? fileName : dir.substring(start, end) + "/" + fileName);
+  }
+
+  private void scan(String sourceRoot) {
+    Path root = Paths.get(sourceRoot);
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          packages.add(root.relativize(dir).toString().replace(File.separatorChar, '.'));
+          return FileVisitResult.CONTINUE;
+        }
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (file.getFileName().toString().endsWith(JactlPlugin.DOT_SUFFIX)) {
+            files.putIfAbsent(root.relativize(file).toString().replace(File.separatorChar, '/'), file.toString());
+          }
+          return FileVisitResult.CONTINUE;
+        }
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    catch (IOException e) {
+      // Anything we couldn't scan will just not be found
+    }
+  }
+}
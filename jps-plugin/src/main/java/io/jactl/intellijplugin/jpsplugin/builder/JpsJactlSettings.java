@@ -17,13 +17,17 @@
 
 package io.jactl.intellijplugin.jpsplugin.builder;
 
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
 import io.jactl.intellijplugin.common.JactlPlugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.model.JpsElementChildRole;
 import org.jetbrains.jps.model.JpsProject;
 import org.jetbrains.jps.model.ex.JpsElementBase;
 import org.jetbrains.jps.model.ex.JpsElementChildRoleBase;
 
+import java.io.File;
 import java.util.Map;
 
 public class JpsJactlSettings extends JpsElementBase<JpsJactlSettings> {
@@ -31,13 +35,103 @@ public class JpsJactlSettings extends JpsElementBase<JpsJactlSettings> {
 
   public String  globalVariablesScript = "";
   public boolean verboseEnable = false;
+  public int     buildParallelism = 0;     // Number of files to compile in parallel (0 means use default)
+
+  // Globals for the current build and the last globals evaluated by this build process
+  private static final Key<Globals> BUILD_GLOBALS = Key.create("JACTL_BUILD_GLOBALS");
+  private static volatile Globals   lastGlobals;
+
+  /**
+   * Result of evaluating the globals script (the globals or the error) along with the
+   * path, size, and modification time of the script when it was evaluated
+   */
+  private static class Globals {
+    final String             path;
+    final long               length;
+    final long               lastModified;
+    final Map<String,Object> globals;
+    final GlobalsException   error;
+    Globals(String path, long length, long lastModified, Map<String,Object> globals, GlobalsException error) {
+      this.path         = path;
+      this.length       = length;
+      this.lastModified = lastModified;
+      this.globals      = globals;
+      this.error        = error;
+    }
+    boolean isFor(String path, File file) {
+      return this.path.equals(path) && length == file.length() && lastModified == file.lastModified();
+    }
+    Map<String,Object> get() {
+      if (error != null) {
+        throw error;
+      }
+      return globals;
+    }
+  }
 
   public static JpsJactlSettings getSettings(JpsProject project) {
     JpsJactlSettings settings = project.getContainer().getChild(ROLE);
     return settings == null ? new JpsJactlSettings() : settings;
   }
 
+  /**
+   * Number of files to compile in parallel (1 means compile sequentially). If not set in
+   * the settings then it can be set via the jactl.build.parallelism system property and
+   * otherwise defaults to half the number of processors so that we leave room for other
+   * builders and the IDE.
+   * @return the number of files to compile in parallel
+   */
+  public int getBuildParallelism() {
+    if (buildParallelism > 0) {
+      return buildParallelism;
+    }
+    return Math.max(1, Integer.getInteger("jactl.build.parallelism", Runtime.getRuntime().availableProcessors() / 2));
+  }
+
   public Map<String,Object> getGlobals() {
     return JactlPlugin.getGlobals(globalVariablesScript);
   }
+
+  /**
+   * Get the globals for the current build. The globals script is evaluated at most once
+   * per build (rather than once per file being compiled) and, since the build process can
+   * be reused for multiple builds, is not evaluated again for subsequent builds unless the
+   * script has changed.
+   * @param compileContext  the context for the current build
+   * @return the globals
+   * @throws GlobalsException if the globals script could not be evaluated
+   */
+  public Map<String,Object> getGlobals(CompileContext compileContext) {
+    Globals globals = compileContext.getUserData(BUILD_GLOBALS);
+    if (globals == null) {
+      synchronized (BUILD_GLOBALS) {
+        globals = compileContext.getUserData(BUILD_GLOBALS);
+        if (globals == null) {
+          globals = evaluateGlobals();
+          compileContext.putUserData(BUILD_GLOBALS, globals);
+        }
+      }
+    }
+    return globals.get();
+  }
+
+  private Globals evaluateGlobals() {
+    String  path   = globalVariablesScript == null ? "" : FileUtil.toSystemIndependentName(globalVariablesScript.trim());
+    File    file   = new File(path);
+    Globals cached = lastGlobals;
+    if (cached != null && cached.isFor(path, file)) {
+      return cached;
+    }
+    // Get size/timestamp before evaluating in case script changes while we are reading it
+    long length       = file.length();
+    long lastModified = file.lastModified();
+    try {
+      cached = new Globals(path, length, lastModified, JactlPlugin.getGlobals(path), null);
+    }
+    catch (GlobalsException e) {
+      cached = new Globals(path, length, lastModified, null, e);
+    }
+    lastGlobals = cached;
+    return cached;
+  }
 }
@@ -1,65 +1,64 @@
 package io.jactl.intellijplugin;
 
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.tree.IElementType;
 
+/**
+ * Key identifying a Jactl AST node by element type and offset within a file. The type
+ * index and offset are packed into a single long (see pack()) which is what is used
+ * for hashing/equality and for looking up AST nodes in the ParsedScript.
+ * <p>Keys are stored on the AST nodes themselves so they deliberately don't refer to the
+ * file: callers that need to find the PSI element for a key pass the file explicitly.</p>
+ */
 public class JactlAstKey {
   public static final Logger LOG = Logger.getInstance(JactlParserAdapter.class);
 
-  private IElementType type;
-  private int          offset;
-  private String       toString;
-  private JactlFile    jactlFile;
-  private VirtualFile  virtualFile;
-  private Project      project;
+  private static final int NULL_TYPE = 0xFFFF;
 
-  public JactlAstKey(JactlFile jactlFile, IElementType type, int offset) {
+  private final IElementType type;
+  private final int          offset;
+  private final long         packed;
+
+  public JactlAstKey(IElementType type, int offset) {
     this.type   = type;
     this.offset = offset;
-    this.jactlFile = jactlFile;
-    if (jactlFile == null) {
-      //LOG.warn("JactlFile is null");
-    }
-    else
-    if (jactlFile.getVirtualFile() == null) {
-      //LOG.warn("VirtualFile is null for " + jactlFile);
-    }
-    else {
-      this.virtualFile = jactlFile.getVirtualFile();
-      this.project = jactlFile.getProject();
-    }
-    this.toString = type + ":" + offset;
+    this.packed = pack(type, offset);
+  }
+
+  /**
+   * Pack element type index and offset into a long
+   * @param type    the element type (can be null)
+   * @param offset  the offset
+   * @return the packed key (never negative)
+   */
+  public static long pack(IElementType type, int offset) {
+    long typeIndex = type == null ? NULL_TYPE : type.getIndex() & 0xFFFF;
+    return typeIndex << 32 | (offset & 0xFFFFFFFFL);
   }
 
   public IElementType getType()   { return type; }
   public int          getOffset() { return offset; }
-  public JactlFile    getFile()   {
-    //return (JactlFile)PsiManager.getInstance(project).findFile(virtualFile);
-    return jactlFile;
+  public long         getPacked() { return packed; }
+
+  public static String toString(long packed) {
+    int          typeIndex = (int) (packed >>> 32);
+    IElementType type      = typeIndex == NULL_TYPE ? null : IElementType.find((short) typeIndex);
+    return "JactlAstKey[" + type + ":" + (int) packed + "]";
   }
 
   @Override
   public String toString() {
-    return "JactlAstKey[" + toString + "]";
+    return toString(packed);
   }
 
   @Override
   public int hashCode() {
-    return toString.hashCode();
+    return Long.hashCode(packed);
   }
 
   @Override
   public boolean equals(Object obj) {
     if (this == obj) { return true; }
-    if (obj instanceof JactlAstKey) {
-      JactlAstKey other = (JactlAstKey) obj;
-      if (type != null && !type.equals(other.type) || type == null && other.type != null) {
-        return false;
-      }
-      return offset == other.offset;
-    }
-    return false;
+    return obj instanceof JactlAstKey && packed == ((JactlAstKey) obj).packed;
   }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import java.util.Arrays;
+
+/**
+ * Map from packed AST key (see JactlAstKey.pack()) to value using open addressing with
+ * linear probing over parallel key/value arrays so that neither puts nor lookups need
+ * to allocate any objects.
+ * <p>Packed keys are never negative so -1 is used to mark empty slots.</p>
+ */
+public class JactlAstNodeMap<V> {
+
+  private static final long EMPTY = -1L;
+
+  private long[]   keys;
+  private Object[] values;
+  private int      size;
+  private int      mask;
+
+  public JactlAstNodeMap() {
+    this(64);
+  }
+
+  public JactlAstNodeMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+    keys   = new long[capacity];
+    values = new Object[capacity];
+    mask   = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void put(long key, V value) {
+    int idx = indexOf(keys, mask, key);
+    if (keys[idx] == EMPTY) {
+      if ((size + 1) * 2 > keys.length) {
+        resize();
+        idx = indexOf(keys, mask, key);
+      }
+      keys[idx] = key;
+      size++;
+    }
+    values[idx] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int idx = indexOf(keys, mask, key);
+    return keys[idx] == EMPTY ? null : (V) values[idx];
+  }
+
+  public boolean containsKey(long key) {
+    return keys[indexOf(keys, mask, key)] != EMPTY;
+  }
+
+  /**
+   * Find slot holding key or the empty slot where it should go
+   */
+  private static int indexOf(long[] keys, int mask, long key) {
+    int idx = hash(key) & mask;
+    while (keys[idx] != EMPTY && keys[idx] != key) {
+      idx = (idx + 1) & mask;
+    }
+    return idx;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void resize() {
+    long[]   oldKeys   = keys;
+    Object[] oldValues = values;
+    int      capacity  = oldKeys.length * 2;
+    keys   = new long[capacity];
+    values = new Object[capacity];
+    mask   = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int idx = indexOf(keys, mask, oldKeys[i]);
+        keys[idx]   = oldKeys[i];
+        values[idx] = oldValues[i];
+      }
+    }
+  }
+}
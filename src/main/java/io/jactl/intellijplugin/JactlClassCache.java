@@ -0,0 +1,347 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.util.SimpleModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import com.intellij.psi.tree.IElementType;
+import io.jactl.Stmt;
+import io.jactl.runtime.ClassDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static io.jactl.intellijplugin.psi.JactlTokenTypes.*;
+
+/**
+ * Project level cache of the ClassDescriptors for the classes in each Jactl file so that
+ * looking up a class from another file does not need to get (and possibly reparse and
+ * resolve) the ParsedScript of that file each time. We only keep the ClassDescriptor and
+ * not the Stmt.ClassDecl so that we don't keep the resolved AST of every file alive.
+ * <p>Entries are validated against the modification stamp of the file. While a file is
+ * being resolved we record which other files it looked up classes from so that when a
+ * file changes we can invalidate the entries for it and for all files that (transitively)
+ * depend on it. Each file has a ModificationTracker that is bumped when this happens so
+ * that the cached ParsedScript for dependent files is also recomputed.</p>
+ * <p>Most edits are to function bodies and don't change the ClassDescriptors of the classes
+ * in the file. Each entry remembers a hash of the declarations in the file (see
+ * declarationsHash()) and dependents are only invalidated when that hash changes. The
+ * entry for the file itself is always refreshed on next use since its stamp will differ.</p>
+ * <p>We also record the classes that a file looked up but which didn't exist so that when
+ * a Jactl file or a directory is created, moved, copied, or renamed we only invalidate the
+ * files that were looking for a class that it could declare.</p>
+ */
+@Service(Service.Level.PROJECT)
+public final class JactlClassCache implements Disposable {
+
+  private static final ThreadLocal<VirtualFile> requestingFile = new ThreadLocal<>();
+
+  private final Project                                     project;
+  private final Map<VirtualFile, FileEntry>                 entries    = new ConcurrentHashMap<>();
+  private final Map<VirtualFile, Set<VirtualFile>>          dependents = new ConcurrentHashMap<>();   // Dependency -> dependents
+  private final Map<VirtualFile, SimpleModificationTracker> trackers   = new ConcurrentHashMap<>();
+  private final Map<String, Set<VirtualFile>>               missing    = new ConcurrentHashMap<>();   // Class not found -> files
+
+  private static class FileEntry {
+    final long                                   modificationStamp;
+    final int                                    declarationsHash;
+    final Map<String, Optional<ClassDescriptor>> descriptors = new ConcurrentHashMap<>();
+    FileEntry(long modificationStamp, int declarationsHash) {
+      this.modificationStamp = modificationStamp;
+      this.declarationsHash  = declarationsHash;
+    }
+  }
+
+  public JactlClassCache(Project project) {
+    this.project = project;
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override public void childrenChanged(@NotNull PsiTreeChangeEvent event) { fileChanged(event.getFile()); }
+      @Override public void childAdded(@NotNull PsiTreeChangeEvent event)      { fileChanged(event.getFile()); }
+      @Override public void childRemoved(@NotNull PsiTreeChangeEvent event)    { fileChanged(event.getFile()); }
+      @Override public void childReplaced(@NotNull PsiTreeChangeEvent event)   { fileChanged(event.getFile()); }
+      @Override public void childMoved(@NotNull PsiTreeChangeEvent event)      { fileChanged(event.getFile()); }
+    }, this);
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull List<? extends VFileEvent> events) {
+        for (VFileEvent event: events) {
+          VirtualFile file = event instanceof VFileCopyEvent ? ((VFileCopyEvent) event).findCreatedFile() : event.getFile();
+          if (file == null || !file.isDirectory() && file.getFileType() != JactlFileType.INSTANCE) {
+            continue;
+          }
+          if (event instanceof VFileCreateEvent || event instanceof VFileCopyEvent || event instanceof VFileMoveEvent ||
+              event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+            invalidateMissing(file);
+          }
+          // Saving a document also shows up as a content change so check whether declarations changed
+          if (event instanceof VFileContentChangeEvent && !file.isDirectory() && !declarationsChanged(file, loadText(file))) {
+            continue;
+          }
+          invalidate(file);
+        }
+      }
+    });
+  }
+
+  public static JactlClassCache getInstance(Project project) {
+    return project.getService(JactlClassCache.class);
+  }
+
+  /**
+   * Get the ClassDescriptor for given class in given file
+   * @param file       the JactlFile
+   * @param className  the class name (A$B$C) without package name
+   * @return the ClassDescriptor or null
+   */
+  public ClassDescriptor getClassDescriptor(JactlFile file, String className) {
+    VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null) {
+      return descriptorOf(JactlParserAdapter.getClassDecl(file, className));
+    }
+    VirtualFile requester = requestingFile.get();
+    if (requester != null && !requester.equals(virtualFile)) {
+      dependents.computeIfAbsent(virtualFile, k -> ConcurrentHashMap.newKeySet()).add(requester);
+    }
+    if (JactlParserAdapter.isBeingResolved(file)) {
+      // Cycle back to a file that we are part way through resolving so don't cache what we get
+      return descriptorOf(JactlParserAdapter.getClassDecl(file, className));
+    }
+    long      stamp = file.getModificationStamp();
+    FileEntry entry = entries.get(virtualFile);
+    if (entry == null || entry.modificationStamp != stamp) {
+      entry = new FileEntry(stamp, declarationsHash(file.getViewProvider().getContents()));
+      entries.put(virtualFile, entry);
+    }
+    Optional<ClassDescriptor> descriptor = entry.descriptors.get(className);
+    if (descriptor == null) {
+      // Don't use computeIfAbsent since getting the ClassDecl can recursively look up other classes
+      descriptor = Optional.ofNullable(descriptorOf(JactlParserAdapter.getClassDecl(file, className)));
+      entry.descriptors.putIfAbsent(className, descriptor);
+    }
+    return descriptor.orElse(null);
+  }
+
+  private static ClassDescriptor descriptorOf(Stmt.ClassDecl classDecl) {
+    return classDecl == null ? null : classDecl.classDescriptor;
+  }
+
+  /**
+   * Record that the class being looked up by the file currently being resolved does not exist
+   * @param fqClassName  the fully qualified class name (a.b.X$Y)
+   */
+  public void recordMissing(String fqClassName) {
+    VirtualFile requester = requestingFile.get();
+    if (requester != null) {
+      missing.computeIfAbsent(fqClassName, k -> ConcurrentHashMap.newKeySet()).add(requester);
+    }
+  }
+
+  /**
+   * Run the given resolve of a file recording any classes looked up while doing so as
+   * dependencies of the file.
+   */
+  public static <T> T withRequestingFile(JactlFile file, Supplier<T> resolve) {
+    VirtualFile previous = requestingFile.get();
+    requestingFile.set(file == null ? null : file.getVirtualFile());
+    try {
+      return resolve.get();
+    }
+    finally {
+      requestingFile.set(previous);
+    }
+  }
+
+  /**
+   * Get the tracker that is bumped whenever any file that the given file depends on changes
+   * @param file  the file
+   * @return the tracker
+   */
+  public ModificationTracker getModificationTracker(PsiFile file) {
+    VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null) {
+      return ModificationTracker.NEVER_CHANGED;
+    }
+    return trackers.computeIfAbsent(virtualFile, k -> new SimpleModificationTracker());
+  }
+
+  private void fileChanged(PsiFile file) {
+    VirtualFile virtualFile = file instanceof JactlFile ? file.getVirtualFile() : null;
+    if (virtualFile != null && declarationsChanged(virtualFile, file.getViewProvider().getContents())) {
+      invalidate(virtualFile);
+    }
+  }
+
+  /**
+   * Whether the declarations in the new text of the file differ from those in the text that
+   * the cached classes were built from. If nothing has been cached for the file then we
+   * don't know so we assume that they have.
+   */
+  private boolean declarationsChanged(VirtualFile file, CharSequence text) {
+    FileEntry entry = entries.get(file);
+    return entry == null || text == null || entry.declarationsHash != declarationsHash(text);
+  }
+
+  private CharSequence loadText(VirtualFile file) {
+    Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    if (document != null) {
+      return PsiDocumentManager.getInstance(project).getLastCommittedText(document);
+    }
+    try {
+      return file.isValid() ? LoadTextUtil.loadText(file) : null;
+    }
+    catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Hash of the tokens in the given source that can affect the ClassDescriptors of its
+   * classes. This is everything except whitespace/comments and the contents of blocks that
+   * are not class bodies (function bodies, closures, and expressions within strings).
+   * @param text  the source
+   * @return the hash
+   */
+  static int declarationsHash(CharSequence text) {
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(text, 0, text.length(), 0);
+    boolean classBodyNext = false;      // Whether next '{' starts a class body
+    int     skipDepth     = 0;          // Depth within blocks that we are ignoring
+    int     hash          = 0;
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      if (JactlClassNameIndex.INSIGNIFICANT.contains(type)) {
+        continue;
+      }
+      if (type == LEFT_BRACE || type == DOLLAR_BRACE) {
+        if (skipDepth > 0 || type == DOLLAR_BRACE || !classBodyNext) {
+          skipDepth++;
+          continue;
+        }
+        classBodyNext = false;
+      }
+      else if (skipDepth > 0) {
+        if (type == RIGHT_BRACE) {
+          skipDepth--;
+        }
+        continue;
+      }
+      else if (type == CLASS) {
+        classBodyNext = true;
+      }
+      hash = 31 * hash + type.getIndex();
+      hash = 31 * hash + lexer.getTokenText().hashCode();
+    }
+    return hash;
+  }
+
+  /**
+   * Invalidate entries for given file (or all files under given directory) and for all
+   * files that depend on them
+   * @param file  the file or directory
+   */
+  public void invalidate(VirtualFile file) {
+    Deque<VirtualFile> queue   = new ArrayDeque<>();
+    Set<VirtualFile>   visited = new HashSet<>();
+    if (file.isDirectory()) {
+      String dirPath = file.getPath() + "/";
+      entries.keySet().stream().filter(f -> f.getPath().startsWith(dirPath)).forEach(queue::add);
+    }
+    else {
+      queue.add(file);
+    }
+    while (!queue.isEmpty()) {
+      VirtualFile next = queue.removeFirst();
+      if (!visited.add(next)) {
+        continue;
+      }
+      entries.remove(next);
+      SimpleModificationTracker tracker = trackers.get(next);
+      if (tracker != null) {
+        tracker.incModificationCount();
+      }
+      // Dependents will record themselves again when they are next resolved
+      Set<VirtualFile> deps = dependents.remove(next);
+      if (deps != null) {
+        queue.addAll(deps);
+      }
+    }
+  }
+
+  /**
+   * Invalidate the files that looked for a class that could now be declared by the given file
+   * (or by any file under the given directory) since it has been created or has moved
+   */
+  private void invalidateMissing(VirtualFile file) {
+    if (missing.isEmpty() || !file.isValid() || project.isDisposed()) {
+      return;
+    }
+    ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+    VirtualFile      dir       = file.isDirectory() ? file : file.getParent();
+    if (dir == null || !fileIndex.isInSourceContent(dir)) {
+      return;
+    }
+    String            packageName = fileIndex.getPackageNameByDirectory(dir);
+    Predicate<String> affected;
+    if (file.isDirectory()) {
+      affected = packageName == null || packageName.isEmpty() ? name -> true : name -> name.startsWith(packageName + ".");
+    }
+    else {
+      String className = packageName == null || packageName.isEmpty() ? file.getNameWithoutExtension()
+                                                                      : packageName + "." + file.getNameWithoutExtension();
+      affected = name -> name.equals(className) || name.startsWith(className + "$");
+    }
+    List<String> names = missing.keySet().stream().filter(affected).collect(Collectors.toList());
+    for (String name: names) {
+      Set<VirtualFile> files = missing.remove(name);
+      if (files != null) {
+        files.forEach(this::invalidate);
+      }
+    }
+  }
+
+  public void clear() {
+    entries.clear();
+    dependents.clear();
+    missing.clear();
+    trackers.values().forEach(SimpleModificationTracker::incModificationCount);
+  }
+
+  @Override
+  public void dispose() {
+    clear();
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.BooleanDataDescriptor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import io.jactl.intellijplugin.common.JactlPlugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+import static io.jactl.intellijplugin.psi.JactlTokenTypes.*;
+
+/**
+ * Index of the classes declared in each Jactl file, and whether the file is a script or
+ * a class file, so that we can list packages and find classes without walking directories
+ * or parsing files.
+ * <p>Keys are the class paths within the file: "X" and "X$Y" for class X and its inner
+ * class Y in file X.jactl. Index data can only depend on the contents of the file, and
+ * the package of a class is determined by the location of the file relative to its source
+ * root, so the package is not part of the key. Instead queries only keep the files that
+ * are in the directories for the package (see findFiles()). Classes declared within a
+ * script are keyed by their name within the script ("Y" rather than "Jactl$$X$Y") and the
+ * script itself is keyed by the file name.</p>
+ * <p>The value for each key is true if the file is a script. Since all we need is the
+ * class names we only run the highlighting lexer over the file rather than parsing it.</p>
+ */
+public class JactlClassNameIndex extends FileBasedIndexExtension<String, Boolean> {
+
+  public static final ID<String, Boolean> NAME = ID.create("jactl.className");
+
+  private static final int VERSION = 3;
+
+  // Tokens that can occur in package/import statements before the class declaration in a class file
+  private static final TokenSet HEADER_TOKENS = TokenSet.create(PACKAGE, IMPORT, STATIC, AS, IDENTIFIER, DOT, STAR, SEMICOLON);
+  static final TokenSet         INSIGNIFICANT = TokenSet.create(EOL, WHITESPACE, COMMENT, TokenType.WHITE_SPACE);
+
+  @Override
+  public @NotNull ID<String, Boolean> getName() {
+    return NAME;
+  }
+
+  @Override
+  public @NotNull DataIndexer<String, Boolean, FileContent> getIndexer() {
+    return content -> scan(content.getContentAsText(), JactlPlugin.removeSuffix(content.getFileName()));
+  }
+
+  @Override
+  public @NotNull KeyDescriptor<String> getKeyDescriptor() {
+    return EnumeratorStringDescriptor.INSTANCE;
+  }
+
+  @Override
+  public @NotNull DataExternalizer<Boolean> getValueExternalizer() {
+    return BooleanDataDescriptor.INSTANCE;
+  }
+
+  @Override
+  public int getVersion() {
+    return VERSION;
+  }
+
+  @Override
+  public FileBasedIndex.@NotNull InputFilter getInputFilter() {
+    return new DefaultFileTypeSpecificInputFilter(JactlFileType.INSTANCE);
+  }
+
+  @Override
+  public boolean dependsOnFileContent() {
+    return true;
+  }
+
+  /**
+   * Whether the given file is a script according to the index
+   * @param project  the project
+   * @param file     the file
+   * @return true if script, false if class file, or null if not known (e.g. index not available)
+   */
+  public static Boolean isScript(Project project, VirtualFile file) {
+    Map<String, Boolean> data = getFileData(project, file);
+    return data == null || data.isEmpty() ? null : data.values().iterator().next();
+  }
+
+  /**
+   * Find the files in the project that declare the given class according to the index
+   * @param project      the project
+   * @param packageName  the package name ("a.b.c" or "" for no package)
+   * @param classPath    the class path within the file (X$Y$Z)
+   * @return the files (usually only one) or null if not known (index not available)
+   */
+  public static List<VirtualFile> findFiles(Project project, String packageName, String classPath) {
+    if (DumbService.isDumb(project)) {
+      return null;
+    }
+    List<VirtualFile> files = new ArrayList<>();
+    Set<VirtualFile>  dirs  = new HashSet<>(JactlUtils.getPackageDirs(project, packageName));
+    if (dirs.isEmpty()) {
+      return files;
+    }
+    for (VirtualFile file: FileBasedIndex.getInstance().getContainingFiles(NAME, classPath, GlobalSearchScope.projectScope(project))) {
+      if (dirs.contains(file.getParent())) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private static Map<String, Boolean> getFileData(Project project, VirtualFile file) {
+    if (file == null || DumbService.isDumb(project)) {
+      return null;
+    }
+    return FileBasedIndex.getInstance().getFileData(NAME, file, project);
+  }
+
+  /**
+   * Find the classes declared in the given source. A file is a class file if the first
+   * statement after any package/import statements is a class declaration for a class with
+   * the same name as the file.
+   * @param text      the source
+   * @param fileName  the file name without suffix
+   * @return map of class path to whether file is a script
+   */
+  static Map<String, Boolean> scan(CharSequence text, String fileName) {
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(text, 0, text.length(), 0);
+    List<String>    classes      = new ArrayList<>();
+    Deque<String>   classStack   = new ArrayDeque<>();     // Enclosing classes
+    Deque<Integer>  classDepths  = new ArrayDeque<>();     // Brace depth of body of each enclosing class
+    String          pendingClass = null;                   // Class whose body we have not yet reached
+    boolean         expectName   = false;
+    Boolean         isScript     = null;
+    int             depth        = 0;
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      if (INSIGNIFICANT.contains(type)) {
+        continue;
+      }
+      if (expectName) {
+        expectName = false;
+        if (type == IDENTIFIER) {
+          String name = lexer.getTokenText();
+          if (isScript == null) {
+            isScript = !name.equals(fileName);
+          }
+          pendingClass = classStack.isEmpty() ? name : classStack.peek() + "$" + name;
+          classes.add(pendingClass);
+          continue;
+        }
+      }
+      if (type == CLASS) {
+        expectName = true;
+        continue;
+      }
+      if (isScript == null && depth == 0 && !HEADER_TOKENS.contains(type)) {
+        isScript = true;
+      }
+      if (type == LEFT_BRACE || type == DOLLAR_BRACE) {
+        depth++;
+        if (pendingClass != null) {
+          classStack.push(pendingClass);
+          classDepths.push(depth);
+          pendingClass = null;
+        }
+      }
+      else if (type == RIGHT_BRACE) {
+        if (!classDepths.isEmpty() && classDepths.peek() == depth) {
+          classStack.pop();
+          classDepths.pop();
+        }
+        depth--;
+      }
+    }
+
+    boolean              script = isScript == null || isScript;
+    Map<String, Boolean> result = new HashMap<>();
+    if (script) {
+      result.put(fileName, true);
+    }
+    classes.forEach(name -> result.put(name, script));
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import io.jactl.JactlContext;
+
+/**
+ * Project level JactlContext shared by everything that parses Jactl code (highlighting,
+ * completion, annotation, pre-parsing) so that we don't build a new context every time a
+ * file is tokenised.
+ * <p>Resolving does not use this context (see ParsedScript.resolveContext()) since a context
+ * remembers the classes it has looked up and we need every lookup to go through
+ * JactlClassCache so that it is recorded as a dependency of the file being resolved. Since
+ * nothing is looked up via this context it never holds anything that can become stale: its
+ * package checker delegates to JactlPackageTrie, which keeps itself up to date, and the
+ * globals are passed to each resolve rather than held by the context. This means that it
+ * never needs to be thrown away.</p>
+ * <p>Parsing only reads the context so it can be used by several threads at once (see
+ * ParsingTests.testConcurrentParsesShareContext()).</p>
+ */
+@Service(Service.Level.PROJECT)
+public final class JactlContextService implements Disposable {
+
+  private final Project          project;
+  private volatile JactlContext  jactlContext;     // null means create on next use
+
+  public JactlContextService(Project project) {
+    this.project = project;
+  }
+
+  public static JactlContextService getInstance(Project project) {
+    return project.getService(JactlContextService.class);
+  }
+
+  /**
+   * Get the shared JactlContext, creating it if necessary
+   * @return the JactlContext
+   */
+  public JactlContext getJactlContext() {
+    JactlContext context = jactlContext;
+    if (context == null) {
+      synchronized (this) {
+        if (jactlContext == null) {
+          jactlContext = JactlUtils.createJactlContext(project);
+        }
+        context = jactlContext;
+      }
+    }
+    return context;
+  }
+
+  @Override
+  public void dispose() {
+    jactlContext = null;
+  }
+}
@@ -21,16 +21,8 @@ import java.util.Map;
 
 public class JactlFile extends PsiFileBase implements JactlPsiElement {
 
-  long lastModified;
-  String text;
-
   public JactlFile(FileViewProvider viewProvider) {
     super(viewProvider, JactlLanguage.INSTANCE);
-    lastModified = getModificationStamp();
-    text = getText();
-    if (text != null) {
-      text = text.intern();
-    }
   }
 
   /**
@@ -66,19 +58,6 @@ public class JactlFile extends PsiFileBase implements JactlPsiElement {
     return JactlFileType.INSTANCE;
   }
 
-  @Override
-  public String getText() {
-    long modificationStamp = getModificationStamp();
-    if (modificationStamp != lastModified || text == null) {
-      text = super.getText();
-      if (text != null) {
-        text.intern();
-      }
-      lastModified = modificationStamp;
-    }
-    return text;
-  }
-
   @Override
   public String toString() {
     return "Jactl File[0x" + Long.toHexString(System.identityHashCode(this)) + "]";
@@ -91,7 +70,12 @@ public class JactlFile extends PsiFileBase implements JactlPsiElement {
 
   @Override
   public JactlAstKey getAstKey() {
-    return new JactlAstKey(this, JactlNameElementType.JACTL_FILE, 0);
+    return new JactlAstKey(JactlNameElementType.JACTL_FILE, 0);
+  }
+
+  @Override
+  public long getPackedAstKey() {
+    return JactlAstKey.pack(JactlNameElementType.JACTL_FILE, 0);
   }
 
   @Override
@@ -140,12 +124,21 @@ public class JactlFile extends PsiFileBase implements JactlPsiElement {
     }
 
     // Incomplete file so check if first element is a class declaration with same name as file
+    return !hasFileClassDecl();
+  }
+
+  /**
+   * Check, using only the PSI (so without needing the file to be resolved), whether the
+   * first statement of the file is a class declaration with the same name as the file
+   * @return true if file looks like a class file
+   */
+  public boolean hasFileClassDecl() {
     PsiElement firstChild = JactlUtils.getFirstChild(this, child -> !JactlUtils.isElementType(child, JactlStmtElementType.IMPORT_STMT, JactlNameElementType.PACKAGE));
     if (JactlUtils.isElementType(firstChild, JactlStmtElementType.CLASS_DECL)) {
       PsiElement name = JactlUtils.getFirstDescendant(firstChild, JactlNameElementType.CLASS);
-      return !name.getText().equals(getFileNameNoSuffix());
+      return name != null && name.getText().equals(getFileNameNoSuffix());
     }
-    return true;
+    return false;
   }
 
   public Map<String,Object> getGlobals() {
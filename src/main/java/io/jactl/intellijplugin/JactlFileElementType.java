@@ -18,11 +18,19 @@
 package io.jactl.intellijplugin;
 
 import com.intellij.lang.ASTNode;
-import com.intellij.lang.PsiBuilder;
-import com.intellij.openapi.project.Project;
-import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.stubs.PsiFileStub;
+import com.intellij.psi.tree.IStubFileElementType;
+import org.jetbrains.annotations.NotNull;
 
-public class JactlFileElementType extends IFileElementType {
+/**
+ * File element type. This is a stub file element type so that class declarations are
+ * available from the stub index without parsing the file (see JactlStubElementType).
+ */
+public class JactlFileElementType extends IStubFileElementType<PsiFileStub<JactlFile>> {
+
+  // Increment when stubs change
+  private static final int STUB_VERSION = 2;
 
   public JactlFileElementType() {
     super("jactl.FILE", JactlLanguage.INSTANCE);
@@ -32,4 +40,22 @@ public class JactlFileElementType extends IFileElementType {
   public ASTNode createNode(CharSequence text) {
     return new JactlFileElement(text);
   }
+
+  /**
+   * Let the parse cache know which version of which file is being parsed
+   */
+  @Override
+  protected ASTNode doParseContents(@NotNull ASTNode chameleon, @NotNull PsiElement psi) {
+    return JactlParseCache.withVersion(psi.getContainingFile(), () -> super.doParseContents(chameleon, psi));
+  }
+
+  @Override
+  public int getStubVersion() {
+    return STUB_VERSION;
+  }
+
+  @Override
+  public @NotNull String getExternalId() {
+    return "jactl.FILE";
+  }
 }
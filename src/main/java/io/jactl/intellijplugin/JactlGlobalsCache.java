@@ -0,0 +1,233 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.util.SimpleModificationTracker;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import com.intellij.psi.tree.IElementType;
+import io.jactl.intellijplugin.jpsplugin.builder.GlobalsException;
+import io.jactl.runtime.RuntimeUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+import static io.jactl.intellijplugin.psi.JactlTokenTypes.IDENTIFIER;
+
+/**
+ * Cache of the result of evaluating the globals script so that we don't compile and run
+ * the globals script every time a file is resolved. The result (or the GlobalsException
+ * if evaluation failed) is kept along with the path and modification stamp of the globals
+ * script it came from and is only recalculated when one of these changes. We use the PSI
+ * modification stamp since the script is evaluated from the PSI text which may include
+ * edits that have not yet been saved.
+ * <p>Each ParsedScript has a ModificationTracker (see getModificationTracker()) that is a
+ * dependency of its cached value and which only changes when a global that the script uses
+ * has been added, removed, or has changed type (see ParsedScript.usesChangedGlobals()). This
+ * means that, whether or not they are open, only the files that use a changed global are
+ * resolved again.</p>
+ */
+@Service(Service.Level.PROJECT)
+public final class JactlGlobalsCache implements Disposable {
+
+  private final Project                   project;
+  private final SimpleModificationTracker scriptTracker = new SimpleModificationTracker();   // Bumped when globals script may have changed
+  private volatile Result                 result;
+
+  private static class Result {
+    final String             path;
+    final long               modificationStamp;
+    final Map<String,Object> globals;
+    final GlobalsException   error;
+    Result(String path, long modificationStamp, Map<String,Object> globals, GlobalsException error) {
+      this.path              = path;
+      this.modificationStamp = modificationStamp;
+      this.globals           = globals;
+      this.error             = error;
+    }
+    boolean isFor(String path, long modificationStamp) {
+      return this.modificationStamp == modificationStamp && this.path.equals(path);
+    }
+  }
+
+  public JactlGlobalsCache(Project project) {
+    this.project = project;
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override public void childrenChanged(@NotNull PsiTreeChangeEvent event) { fileChanged(event.getFile()); }
+      @Override public void childAdded(@NotNull PsiTreeChangeEvent event)      { fileChanged(event.getFile()); }
+      @Override public void childRemoved(@NotNull PsiTreeChangeEvent event)    { fileChanged(event.getFile()); }
+      @Override public void childReplaced(@NotNull PsiTreeChangeEvent event)   { fileChanged(event.getFile()); }
+      @Override public void childMoved(@NotNull PsiTreeChangeEvent event)      { fileChanged(event.getFile()); }
+    }, this);
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull List<? extends VFileEvent> events) {
+        String globalsPath = JactlUtils.getGlobalsPath(project);
+        if (globalsPath != null && events.stream().anyMatch(event -> isGlobalsScript(event, globalsPath))) {
+          globalsScriptChanged();
+        }
+      }
+    });
+  }
+
+  public static JactlGlobalsCache getInstance(Project project) {
+    return project.getService(JactlGlobalsCache.class);
+  }
+
+  /**
+   * Get the globals for the given globals script, evaluating it only if it has changed
+   * since it was last evaluated
+   * @param fileName  the globals script path
+   * @param file      the globals script file
+   * @return the globals
+   * @throws GlobalsException if the globals script could not be evaluated
+   */
+  public Map<String,Object> getGlobals(String fileName, PsiFile file) {
+    String path   = file.getVirtualFile() == null ? fileName : file.getVirtualFile().getPath();
+    long   stamp  = file.getModificationStamp();
+    Result cached = result;
+    if (cached == null || !cached.isFor(path, stamp)) {
+      // Only one thread needs to evaluate the script
+      synchronized (this) {
+        cached = result;
+        if (cached == null || !cached.isFor(path, stamp)) {
+          try {
+            cached = new Result(path, stamp, JactlUtils.evaluateGlobals(fileName, file), null);
+          }
+          catch (GlobalsException e) {
+            cached = new Result(path, stamp, null, e);
+          }
+          result = cached;
+        }
+      }
+    }
+    if (cached.error != null) {
+      throw cached.error;
+    }
+    return cached.globals;
+  }
+
+  /**
+   * Let us know that the globals script (or which file is the globals script) may have
+   * changed
+   */
+  public void globalsScriptChanged() {
+    scriptTracker.incModificationCount();
+    // Open files affected by the change need to be highlighted again
+    ApplicationManager.getApplication().invokeLater(() -> DaemonCodeAnalyzer.getInstance(project).restart(), project.getDisposed());
+  }
+
+  /**
+   * Get a tracker for the given script that changes whenever the globals change in a way
+   * that affects it. The globals are only evaluated again (if the globals script has
+   * changed) when the count is asked for after the globals script has changed.
+   * @param parsed  the ParsedScript
+   * @return the tracker
+   */
+  ModificationTracker getModificationTracker(JactlParserAdapter.ParsedScript parsed) {
+    return new ModificationTracker() {
+      private long checkedCount = scriptTracker.getModificationCount();
+      private long count;
+      @Override
+      public synchronized long getModificationCount() {
+        long scriptCount = scriptTracker.getModificationCount();
+        if (scriptCount != checkedCount) {
+          Map<String,Object> globals = null;
+          GlobalsException   error   = null;
+          try {
+            globals = JactlUtils.getGlobals(project);
+          }
+          catch (GlobalsException e) {
+            error = e;
+          }
+          if (parsed.usesChangedGlobals(globals, error)) {
+            count++;
+          }
+          // Only once we know (evaluating could be cancelled)
+          checkedCount = scriptCount;
+        }
+        return count;
+      }
+    };
+  }
+
+  private void fileChanged(PsiFile file) {
+    if (file instanceof JactlFile && JactlUtils.isGlobalsFile((JactlFile) file)) {
+      globalsScriptChanged();
+    }
+  }
+
+  private static boolean isGlobalsScript(VFileEvent event, String globalsPath) {
+    if (event.getPath().equals(globalsPath)) {
+      return true;
+    }
+    // Moved/renamed/copied to become the globals script
+    VirtualFile file = event instanceof VFileCopyEvent ? ((VFileCopyEvent) event).findCreatedFile() : event.getFile();
+    return file != null && file.getPath().equals(globalsPath);
+  }
+
+  /**
+   * Get the identifiers used in the given source code
+   */
+  static Set<String> identifiers(CharSequence text) {
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(text, 0, text.length(), 0);
+    Set<String> names = new HashSet<>();
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      if (type == IDENTIFIER) {
+        names.add(lexer.getTokenText());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Get the type of the given global
+   * @return the type name or null if there is no such global
+   */
+  static String typeOf(Map<String,Object> globals, String name) {
+    if (globals == null || !globals.containsKey(name)) {
+      return null;
+    }
+    Object value = globals.get(name);
+    return value == null ? "null" : RuntimeUtils.className(value);
+  }
+
+  public void clear() {
+    result = null;
+    globalsScriptChanged();
+  }
+
+  @Override
+  public void dispose() {
+    result = null;
+  }
+}
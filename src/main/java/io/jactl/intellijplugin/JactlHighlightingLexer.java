@@ -0,0 +1,488 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import io.jactl.Tokeniser;
+import io.jactl.intellijplugin.psi.JactlTokenType;
+import io.jactl.intellijplugin.psi.JactlTokenTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Lexer used for syntax highlighting (and anything else that only needs tokens).
+ * <p>Unlike JactlTokeniser, which runs the full Jactl parser so that it can build the
+ * PSI tree, this lexer only scans characters so the editor can restart it from the
+ * start of any token whose state it has already seen. This means that a keystroke
+ * only re-lexes the tokens around the edit rather than the whole file.</p>
+ * <p>The only state that needs to be carried across tokens is whether we are inside
+ * an interpolated string (or regex) and how deeply nested inside <code>${...}</code>
+ * expressions we are, so this is all packed into the int returned by getState():</p>
+ * <pre>
+ *   bits 0-2   : current mode (CODE or one of the string modes)
+ *   bit  3     : previous significant token was an operand (so '/' means divide)
+ *   bit  4     : previous significant token was =~ or !~ (so s/../../ is a substitute)
+ *   bits 5-8   : brace depth within current ${...} expression
+ *   bits 9-10  : number of saved frames for enclosing strings
+ *   bits 11-31 : up to 3 saved frames of 7 bits (string mode and brace depth)
+ * </pre>
+ * <p>State 0 is plain code with no enclosing strings, which is the only state the
+ * editor needs to restart from.</p>
+ */
+public class JactlHighlightingLexer extends LexerBase {
+
+  private static final int CODE          = 0;
+  private static final int DQ_STRING     = 1;     // "..."
+  private static final int TDQ_STRING    = 2;     // """..."""
+  private static final int REGEX         = 3;     // /.../
+  private static final int SUBST_PATTERN = 4;     // s/.../
+  private static final int SUBST_REPLACE = 5;     // .../
+
+  private static final int MODE_MASK     = 0x7;
+  private static final int OPERAND_BIT   = 1 << 3;
+  private static final int MATCH_OP_BIT  = 1 << 4;
+  private static final int DEPTH_SHIFT   = 5;
+  private static final int MAX_DEPTH     = 0xF;
+  private static final int FRAMES_SHIFT  = 9;
+  private static final int FRAME_SHIFT   = 11;
+  private static final int FRAME_BITS    = 7;
+  private static final int FRAME_MASK    = (1 << FRAME_BITS) - 1;
+  private static final int MAX_FRAMES    = 3;
+
+  private static final Map<String, IElementType>         keywords  = new HashMap<>();
+  private static final Map<Character, List<Operator>>    operators = new HashMap<>();
+
+  private static class Operator {
+    String       chars;
+    IElementType type;
+    Operator(String chars, IElementType type) { this.chars = chars; this.type = type; }
+  }
+
+  static {
+    // Referencing JactlTokenTypes forces its initialisation which registers the mappings from TokenType
+    IElementType forceInit = JactlTokenTypes.WHITESPACE;
+    for (io.jactl.TokenType tokenType: io.jactl.TokenType.values()) {
+      String       chars = tokenType.asString;
+      IElementType type  = JactlTokenType.getIElementType(tokenType);
+      if (chars == null || chars.isEmpty() || type == null || chars.chars().anyMatch(Character::isWhitespace)) {
+        continue;
+      }
+      if (Tokeniser.isIdentifier(chars)) {
+        keywords.put(chars, type);
+      }
+      else if (tokenType != io.jactl.TokenType.DOLLAR_BRACE && chars.charAt(0) != '\'' && chars.charAt(0) != '"') {
+        operators.computeIfAbsent(chars.charAt(0), c -> new ArrayList<>()).add(new Operator(chars, type));
+      }
+    }
+    // Longest match first
+    operators.values().forEach(ops -> ops.sort((a, b) -> b.chars.length() - a.chars.length()));
+  }
+
+  private CharSequence buffer;
+  private int          endOffset;
+  private int          tokenStart;
+  private int          tokenEnd;
+  private int          tokenState;
+  private IElementType tokenType;
+
+  // State being built up while scanning current token (applies to start of next token)
+  private int     mode;
+  private boolean prevOperand;
+  private boolean prevMatchOp;
+  private int     depth;
+  private int[]   frames = new int[MAX_FRAMES];
+  private int     frameCount;
+
+  @Override
+  public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+    this.buffer     = buffer;
+    this.endOffset  = endOffset;
+    this.tokenEnd   = startOffset;
+    decodeState(initialState);
+    advance();
+  }
+
+  @Override
+  public int getState() {
+    return tokenState;
+  }
+
+  @Override
+  public @Nullable IElementType getTokenType() {
+    return tokenType;
+  }
+
+  @Override
+  public int getTokenStart() {
+    return tokenStart;
+  }
+
+  @Override
+  public int getTokenEnd() {
+    return tokenEnd;
+  }
+
+  @Override
+  public void advance() {
+    tokenStart = tokenEnd;
+    tokenState = encodeState();
+    if (tokenStart >= endOffset) {
+      tokenType = null;
+      return;
+    }
+    tokenType = mode == CODE ? scanCode() : scanString(false);
+  }
+
+  @Override
+  public @NotNull CharSequence getBufferSequence() {
+    return buffer;
+  }
+
+  @Override
+  public int getBufferEnd() {
+    return endOffset;
+  }
+
+  ///////////////////////////////////
+
+  private int encodeState() {
+    int state = mode | (prevOperand ? OPERAND_BIT : 0) | (prevMatchOp ? MATCH_OP_BIT : 0) | (depth << DEPTH_SHIFT) | (frameCount << FRAMES_SHIFT);
+    for (int i = 0; i < frameCount; i++) {
+      state |= frames[i] << (FRAME_SHIFT + i * FRAME_BITS);
+    }
+    return state;
+  }
+
+  private void decodeState(int state) {
+    mode        = state & MODE_MASK;
+    prevOperand = (state & OPERAND_BIT) != 0;
+    prevMatchOp = (state & MATCH_OP_BIT) != 0;
+    depth       = (state >>> DEPTH_SHIFT) & MAX_DEPTH;
+    frameCount  = (state >>> FRAMES_SHIFT) & 0x3;
+    for (int i = 0; i < frameCount; i++) {
+      frames[i] = (state >>> (FRAME_SHIFT + i * FRAME_BITS)) & FRAME_MASK;
+    }
+  }
+
+  private char charAt(int offset) {
+    return offset < endOffset ? buffer.charAt(offset) : 0;
+  }
+
+  private static boolean isIdentifierStart(char c) {
+    return Character.isLetter(c) || c == '_';
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  private IElementType scanCode() {
+    int  offset = tokenStart;
+    char c      = charAt(offset);
+
+    if (Character.isWhitespace(c)) {
+      while (offset < endOffset && Character.isWhitespace(charAt(offset))) {
+        offset++;
+      }
+      tokenEnd = offset;
+      return JactlTokenTypes.WHITESPACE;
+    }
+
+    if (c == '/' && charAt(offset + 1) == '/') {
+      while (offset < endOffset && charAt(offset) != '\n') {
+        offset++;
+      }
+      tokenEnd = offset;
+      return JactlTokenTypes.COMMENT;
+    }
+
+    if (c == '/' && charAt(offset + 1) == '*') {
+      offset += 2;
+      while (offset < endOffset && !(charAt(offset) == '*' && charAt(offset + 1) == '/')) {
+        offset++;
+      }
+      tokenEnd = Math.min(offset + 2, endOffset);
+      return JactlTokenTypes.COMMENT;
+    }
+
+    // Anything after here is significant so remember whether '=~' came just before
+    boolean afterMatchOp = prevMatchOp;
+    prevMatchOp = false;
+
+    if (c == '\'') {
+      boolean triple = charAt(offset + 1) == '\'' && charAt(offset + 2) == '\'';
+      tokenEnd    = scanSimpleString(offset + (triple ? 3 : 1), triple);
+      prevOperand = true;
+      return JactlTokenTypes.STRING_CONST;
+    }
+
+    if (c == '"') {
+      boolean triple = charAt(offset + 1) == '"' && charAt(offset + 2) == '"';
+      mode     = triple ? TDQ_STRING : DQ_STRING;
+      tokenEnd = offset + (triple ? 3 : 1);
+      return scanString(true);
+    }
+
+    if (c == 's' && charAt(offset + 1) == '/' && afterMatchOp) {
+      mode     = SUBST_PATTERN;
+      tokenEnd = offset + 2;
+      return scanString(true);
+    }
+
+    if (c == '/' && !prevOperand) {
+      mode     = REGEX;
+      tokenEnd = offset + 1;
+      return scanString(true);
+    }
+
+    if (Character.isDigit(c) || (c == '.' && Character.isDigit(charAt(offset + 1)) && !prevOperand)) {
+      prevOperand = true;
+      return scanNumber(offset);
+    }
+
+    if (isIdentifierStart(c) || (c == '$' && (isIdentifierPart(charAt(offset + 1))))) {
+      offset++;
+      while (isIdentifierPart(charAt(offset))) {
+        offset++;
+      }
+      tokenEnd = offset;
+      IElementType keyword = c == '$' ? null : keywords.get(buffer.subSequence(tokenStart, tokenEnd).toString());
+      // Keywords like true/false/null act as operands but most others (return, and, etc) do not
+      prevOperand = keyword == null || keyword == JactlTokenTypes.TRUE || keyword == JactlTokenTypes.FALSE || keyword == JactlTokenTypes.NULL;
+      return keyword == null ? JactlTokenTypes.IDENTIFIER : keyword;
+    }
+
+    if (frameCount > 0) {
+      if (c == '{') {
+        depth = Math.min(depth + 1, MAX_DEPTH);
+      }
+      else if (c == '}') {
+        tokenEnd = offset + 1;
+        if (depth == 0) {
+          // End of ${...} so pop back to enclosing string
+          int frame = frames[--frameCount];
+          mode  = frame & MODE_MASK;
+          depth = frame >>> 3;
+          return JactlTokenTypes.RIGHT_BRACE;
+        }
+        depth--;
+        prevOperand = false;
+        return JactlTokenTypes.RIGHT_BRACE;
+      }
+    }
+
+    Operator op = matchOperator(offset);
+    if (op == null) {
+      tokenEnd    = offset + 1;
+      prevOperand = false;
+      return TokenType.BAD_CHARACTER;
+    }
+    tokenEnd    = offset + op.chars.length();
+    prevOperand = op.type == JactlTokenTypes.RIGHT_PAREN || op.type == JactlTokenTypes.RIGHT_SQUARE;
+    prevMatchOp = op.type == JactlTokenTypes.EQUAL_GRAVE || op.type == JactlTokenTypes.BANG_GRAVE;
+    return op.type;
+  }
+
+  private Operator matchOperator(int offset) {
+    List<Operator> candidates = operators.get(charAt(offset));
+    if (candidates == null) {
+      return null;
+    }
+    for (Operator op: candidates) {
+      int len = op.chars.length();
+      if (offset + len > endOffset) {
+        continue;
+      }
+      boolean matches = true;
+      for (int i = 1; i < len && matches; i++) {
+        matches = buffer.charAt(offset + i) == op.chars.charAt(i);
+      }
+      // Operators such as !instanceof and !in must not run into an identifier
+      if (matches && (!isIdentifierPart(op.chars.charAt(len - 1)) || !isIdentifierPart(charAt(offset + len)))) {
+        return op;
+      }
+    }
+    return null;
+  }
+
+  private int scanSimpleString(int offset, boolean triple) {
+    while (offset < endOffset) {
+      char c = buffer.charAt(offset);
+      if (c == '\\') {
+        offset += 2;
+        continue;
+      }
+      if (c == '\'' && (!triple || (charAt(offset + 1) == '\'' && charAt(offset + 2) == '\''))) {
+        return offset + (triple ? 3 : 1);
+      }
+      if (c == '\n' && !triple) {
+        return offset;
+      }
+      offset++;
+    }
+    return endOffset;
+  }
+
+  private IElementType scanNumber(int offset) {
+    boolean isDecimal = false;
+    if (charAt(offset) == '0' && (charAt(offset + 1) == 'x' || charAt(offset + 1) == 'X')) {
+      offset += 2;
+      while (Character.digit(charAt(offset), 16) >= 0) {
+        offset++;
+      }
+    }
+    else {
+      while (Character.isDigit(charAt(offset))) {
+        offset++;
+      }
+      if (charAt(offset) == '.' && Character.isDigit(charAt(offset + 1))) {
+        isDecimal = true;
+        offset++;
+        while (Character.isDigit(charAt(offset))) {
+          offset++;
+        }
+      }
+      char e = charAt(offset);
+      if (e == 'e' || e == 'E') {
+        int expOffset = offset + 1;
+        if (charAt(expOffset) == '+' || charAt(expOffset) == '-') {
+          expOffset++;
+        }
+        if (Character.isDigit(charAt(expOffset))) {
+          isDecimal = true;
+          offset = expOffset;
+          while (Character.isDigit(charAt(offset))) {
+            offset++;
+          }
+        }
+      }
+    }
+    IElementType type = isDecimal ? JactlTokenTypes.DECIMAL_CONST : JactlTokenTypes.INTEGER_CONST;
+    switch (charAt(offset)) {
+      case 'L': case 'l': type = JactlTokenTypes.LONG_CONST;   offset++; break;
+      case 'D': case 'd': type = JactlTokenTypes.DOUBLE_CONST; offset++; break;
+    }
+    tokenEnd = offset;
+    return type;
+  }
+
+  /**
+   * Scan a chunk of an interpolated string or regex. The chunk ends at the closing delimiter,
+   * at an embedded $identifier or ${...}, or (for the pattern part of a substitute) at the '/'
+   * that separates the pattern from the replacement.
+   * @param isFirst  true if chunk starts with the opening delimiter (already consumed)
+   */
+  private IElementType scanString(boolean isFirst) {
+    int offset = tokenEnd;
+    if (!isFirst) {
+      offset = tokenStart;
+      // An embedded expression: $identifier or ${...}
+      if (isEmbeddedExpr(offset)) {
+        if (charAt(offset + 1) == '{') {
+          pushFrame();
+          tokenEnd = offset + 2;
+          return JactlTokenTypes.DOLLAR_BRACE;
+        }
+        offset++;
+        while (isIdentifierPart(charAt(offset))) {
+          offset++;
+        }
+        tokenEnd = offset;
+        return JactlTokenTypes.DOLLAR_IDENTIFIER;
+      }
+    }
+
+    while (offset < endOffset) {
+      char c = buffer.charAt(offset);
+      if (c == '\\') {
+        offset += 2;
+        continue;
+      }
+      if (isEmbeddedExpr(offset)) {
+        tokenEnd = offset;
+        return isFirst ? (mode == SUBST_PATTERN ? JactlTokenTypes.REGEX_SUBST_START : JactlTokenTypes.EXPR_STRING_START)
+                       : JactlTokenTypes.STRING_CONST;
+      }
+      if (c == '\n' && (mode == DQ_STRING || mode == REGEX || mode == SUBST_PATTERN || mode == SUBST_REPLACE)) {
+        // Unterminated string so stop at end of line and go back to code
+        return endString(offset, isFirst);
+      }
+      switch (mode) {
+        case DQ_STRING:
+          if (c == '"') {
+            return endString(offset + 1, isFirst);
+          }
+          break;
+        case TDQ_STRING:
+          if (c == '"' && charAt(offset + 1) == '"' && charAt(offset + 2) == '"') {
+            return endString(offset + 3, isFirst);
+          }
+          break;
+        case REGEX:
+        case SUBST_REPLACE:
+          if (c == '/') {
+            offset++;
+            while (Character.isLetter(charAt(offset))) {
+              offset++;
+            }
+            return endString(offset, isFirst);
+          }
+          break;
+        case SUBST_PATTERN:
+          if (c == '/') {
+            mode     = SUBST_REPLACE;
+            tokenEnd = offset + 1;
+            return isFirst ? JactlTokenTypes.REGEX_SUBST_START : JactlTokenTypes.REGEX_REPLACE;
+          }
+          break;
+      }
+      offset++;
+    }
+    return endString(endOffset, isFirst);
+  }
+
+  private boolean isEmbeddedExpr(int offset) {
+    char next = charAt(offset + 1);
+    return charAt(offset) == '$' && (next == '{' || isIdentifierStart(next) || Character.isDigit(next));
+  }
+
+  private IElementType endString(int offset, boolean isFirst) {
+    boolean wasSubst = mode == SUBST_REPLACE || mode == SUBST_PATTERN;
+    tokenEnd    = Math.min(offset, endOffset);
+    mode        = CODE;
+    prevOperand = true;
+    return isFirst && !wasSubst ? JactlTokenTypes.STRING_CONST : JactlTokenTypes.EXPR_STRING_END;
+  }
+
+  private void pushFrame() {
+    if (frameCount == MAX_FRAMES) {
+      // Too deeply nested to track so forget about outermost string
+      System.arraycopy(frames, 1, frames, 0, MAX_FRAMES - 1);
+      frameCount--;
+    }
+    frames[frameCount++] = mode | (depth << 3);
+    mode        = CODE;
+    depth       = 0;
+    prevOperand = false;
+    prevMatchOp = false;
+  }
+}
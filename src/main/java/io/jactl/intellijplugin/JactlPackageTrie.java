@@ -0,0 +1,220 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import io.jactl.intellijplugin.common.JactlPlugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Project level trie of the package names (directories under the source roots) so that
+ * checking whether a package exists is a lookup of each part of the name rather than a
+ * walk of every directory under every source root.
+ * <p>The trie is built the first time it is needed and then kept up to date as directories
+ * are created, deleted, moved, copied, and renamed. Since the same package can exist under
+ * more than one source root each node counts how many directories it corresponds to. If the
+ * source roots change then we just throw the trie away and build it again when next needed.</p>
+ */
+@Service(Service.Level.PROJECT)
+public final class JactlPackageTrie implements Disposable {
+
+  private final Project   project;
+  private volatile Node   root;        // null means we need to build it
+
+  private static class Node {
+    final Map<String, Node> children = new ConcurrentHashMap<>();
+    volatile int            count;     // Number of directories for this package
+  }
+
+  public JactlPackageTrie(Project project) {
+    this.project = project;
+    project.getMessageBus().connect(this).subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+      @Override
+      public void rootsChanged(@NotNull ModuleRootEvent event) {
+        root = null;
+      }
+    });
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void before(@NotNull List<? extends VFileEvent> events) {
+        for (VFileEvent event: events) {
+          if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent || isRename(event)) {
+            update(event.getFile(), -1);
+          }
+        }
+      }
+      @Override
+      public void after(@NotNull List<? extends VFileEvent> events) {
+        for (VFileEvent event: events) {
+          if (event instanceof VFileCreateEvent || event instanceof VFileMoveEvent || isRename(event)) {
+            update(event.getFile(), 1);
+          }
+          else if (event instanceof VFileCopyEvent) {
+            update(((VFileCopyEvent) event).findCreatedFile(), 1);
+          }
+        }
+      }
+    });
+  }
+
+  public static JactlPackageTrie getInstance(Project project) {
+    return project.getService(JactlPackageTrie.class);
+  }
+
+  /**
+   * Check whether package exists
+   * @param packageName  the package name ("a.b.c")
+   * @return true if there is a directory for the package under one of the source roots
+   */
+  public boolean contains(String packageName) {
+    Node node = getRoot();
+    if (packageName != null && !packageName.isEmpty()) {
+      int start = 0;
+      while (node != null) {
+        int end = packageName.indexOf('.', start);
+        node = node.children.get(end == -1 ? packageName.substring(start) : packageName.substring(start, end));
+        if (end == -1) {
+          break;
+        }
+        start = end + 1;
+      }
+    }
+    return node != null && node.count > 0;
+  }
+
+  /**
+   * Get all package names
+   * @return the set of package names
+   */
+  public Set<String> getPackageNames() {
+    Set<String> names = new HashSet<>();
+    addNames(getRoot(), "", names);
+    return names;
+  }
+
+  private static void addNames(Node node, String name, Set<String> names) {
+    if (node.count > 0) {
+      names.add(name);
+    }
+    node.children.forEach((childName, child) -> addNames(child, name.isEmpty() ? childName : name + "." + childName, names));
+  }
+
+  private Node getRoot() {
+    Node node = root;
+    if (node == null) {
+      synchronized (this) {
+        if (root == null) {
+          Node newRoot = new Node();
+          for (VirtualFile sourceRoot: JactlUtils.getSourceRootFiles(project)) {
+            for (String pkgName: JactlUtils.pkgNames(sourceRoot)) {
+              add(newRoot, pkgName, 1);
+            }
+          }
+          root = newRoot;
+        }
+        node = root;
+      }
+    }
+    return node;
+  }
+
+  private static boolean isRename(VFileEvent event) {
+    return event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename();
+  }
+
+  /**
+   * Add/remove the packages for the given directory and its sub-directories
+   */
+  private void update(VirtualFile file, int delta) {
+    Node node = root;
+    if (node == null || file == null || !file.isValid() || !file.isDirectory() || project.isDisposed()) {
+      return;
+    }
+    ProjectFileIndex fileIndex  = ProjectFileIndex.getInstance(project);
+    VirtualFile      sourceRoot = fileIndex.getSourceRootForFile(file);
+    if (sourceRoot == null || !fileIndex.isInSourceContent(file)) {
+      return;
+    }
+    String rootPath = sourceRoot.getPath();
+    synchronized (this) {
+      if (root != node) {
+        return;      // Rebuilt since we started
+      }
+      VfsUtilCore.visitChildrenRecursively(file, new VirtualFileVisitor<Void>() {
+        @Override
+        public boolean visitFile(@NotNull VirtualFile dir) {
+          if (!dir.isDirectory()) {
+            return false;
+          }
+          String pkgName = JactlPlugin.stripSeparatedPrefix(dir.getPath(), rootPath, "/").replace('/', '.');
+          add(node, pkgName, delta);
+          return true;
+        }
+      });
+    }
+  }
+
+  private static void add(Node root, String packageName, int delta) {
+    Node       node = root;
+    List<Node> path = new ArrayList<>();
+    path.add(node);
+    if (!packageName.isEmpty()) {
+      for (String part: packageName.split("\\.")) {
+        Node child = node.children.get(part);
+        if (child == null) {
+          if (delta < 0) {
+            return;
+          }
+          child = new Node();
+          node.children.put(part, child);
+        }
+        node = child;
+        path.add(node);
+      }
+    }
+    node.count = Math.max(0, node.count + delta);
+    // Prune nodes that no longer correspond to any directory
+    String[] parts = packageName.isEmpty() ? new String[0] : packageName.split("\\.");
+    for (int i = parts.length; i > 0; i--) {
+      Node child = path.get(i);
+      if (child.count > 0 || !child.children.isEmpty()) {
+        break;
+      }
+      path.get(i - 1).children.remove(parts[i - 1]);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    root = null;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import io.jactl.JactlContext;
+import io.jactl.Parser;
+import io.jactl.Stmt;
+import io.jactl.Tokeniser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Cache of tokenised/parsed source text so that the same version of a document is
+ * only run through the Jactl parser once no matter how many times the PsiBuilder and
+ * the PSI queries (via JactlParserAdapter.getParsedScript()) ask for it. The entry also
+ * holds the ParsedScript which is resolved lazily when first needed by the PSI queries.
+ * <p>Entries are keyed on the document (or virtual file if there is no document) and its
+ * modification stamp. The lexer is not told which file it is lexing so the version being
+ * parsed is passed to it via withVersion() (see JactlFileElementType). Since the text being
+ * parsed may be a snapshot that is older than the current stamp (e.g. a background commit
+ * of a document that has since been edited again) a new entry is only added to the cache
+ * if its text is the current text of the file. This check is only needed when the entry
+ * is created (which means parsing the text anyway) so a cache hit never looks at the text.</p>
+ * <p>Once an entry has been used for a given file (the AST nodes are tagged with keys for
+ * that file and resolving modifies the AST) it can only be reused for that same file.</p>
+ */
+@Service(Service.Level.PROJECT)
+public final class JactlParseCache {
+
+  private static final int MAX_ENTRIES = 20;
+
+  // File currently being parsed by this thread
+  private static final ThreadLocal<PsiFile> parsingFile = new ThreadLocal<>();
+
+  private final Map<Version, Entry> entries = new LinkedHashMap<Version, Entry>(MAX_ENTRIES, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Version, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /**
+   * A version of a file: the document (or virtual file) and its modification stamp
+   */
+  public static final class Version {
+    private final Object owner;
+    private final long   stamp;
+    Version(Object owner, long stamp) {
+      this.owner = owner;
+      this.stamp = stamp;
+    }
+    @Override public boolean equals(Object o) {
+      return o instanceof Version && ((Version) o).owner == owner && ((Version) o).stamp == stamp;
+    }
+    @Override public int hashCode() {
+      return Objects.hashCode(owner) * 31 + Long.hashCode(stamp);
+    }
+  }
+
+  public static JactlParseCache getInstance(Project project) {
+    return project.getService(JactlParseCache.class);
+  }
+
+  /**
+   * Get the version of the given file. Copies of a file (e.g. for completion) have their
+   * own virtual file so they never share entries with the original (whose AST could not
+   * be used for the copy anyway).
+   * @param file  the file
+   * @return the version or null if none
+   */
+  public static Version versionOf(PsiFile file) {
+    if (file == null) {
+      return null;
+    }
+    VirtualFile virtualFile = file.getViewProvider().getVirtualFile();
+    Document    document    = FileDocumentManager.getInstance().getCachedDocument(virtualFile);
+    return document == null ? new Version(virtualFile, file.getModificationStamp())
+                            : new Version(document, document.getModificationStamp());
+  }
+
+  /**
+   * Run the given parse of the given file. Any tokenising of the whole file done by the
+   * parse will use the version of the file as the key for the cache.
+   */
+  public static <T> T withVersion(PsiFile file, Supplier<T> parse) {
+    PsiFile previous = parsingFile.get();
+    parsingFile.set(file);
+    try {
+      return parse.get();
+    }
+    finally {
+      parsingFile.set(previous);
+    }
+  }
+
+  /**
+   * Get the current text of the file (the text of the version returned by versionOf())
+   */
+  private static CharSequence currentText(PsiFile file) {
+    Document document = FileDocumentManager.getInstance().getCachedDocument(file.getViewProvider().getVirtualFile());
+    return document == null ? file.getViewProvider().getContents() : document.getImmutableCharSequence();
+  }
+
+  /**
+   * Get the parsed entry for the given text of the file currently being parsed (see
+   * withVersion()), parsing it if not already cached
+   * @param project  the project (can be null in which case nothing is cached)
+   * @param text     the source code
+   * @return the entry
+   */
+  public static Entry getEntry(Project project, CharSequence text) {
+    PsiFile file    = parsingFile.get();
+    Version version = versionOf(file);
+    if (project == null || project.isDisposed() || version == null) {
+      return new Entry(project, text.toString());
+    }
+    JactlParseCache cache = getInstance(project);
+    Entry           entry = cache.get(version);
+    if (entry != null) {
+      return entry;
+    }
+    // Parse outside of lock
+    entry = new Entry(project, text.toString());
+    if (!StringUtil.equals(currentText(file), text)) {
+      // Parsing an older snapshot of the file so version does not describe this text
+      return entry;
+    }
+    // If another thread beats us to it then we use its entry
+    return cache.putIfAbsent(version, entry);
+  }
+
+  private synchronized Entry get(Version version) {
+    return entries.get(version);
+  }
+
+  private synchronized Entry putIfAbsent(Version version, Entry entry) {
+    Entry existing = entries.get(version);
+    if (existing != null) {
+      return existing;
+    }
+    entries.put(version, entry);
+    return entry;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * The result of tokenising and parsing one version of the source code
+   */
+  public static class Entry {
+    final String            text;
+    final JactlTokenBuilder builder;
+    final JactlTokenTable   tokenTable;
+    final JactlContext      jactlContext;
+    final Stmt.ClassDecl    script;
+
+    // File that the AST belongs to and the resulting ParsedScript. Access to these
+    // (and to the markers within the events) must be synchronised on the entry.
+    JactlFile                       owner;
+    JactlParserAdapter.ParsedScript parsedScript;
+
+    // Held while resolving the AST (outside of the synchronisation on the entry)
+    final ReentrantLock             resolveLock = new ReentrantLock();
+
+    Entry(Project project, String text) {
+      this.text         = text;
+      this.builder      = new JactlTokenBuilder(new Tokeniser(text, true));
+      this.jactlContext = project == null ? JactlUtils.createJactlContext(null)
+                                        : JactlContextService.getInstance(project).getJactlContext();
+
+      // We don't know directory or file name so for the moment use dummy package/class names
+      Parser parser     = new Parser(builder, jactlContext, "");
+      this.script       = parser.parseScriptOrClass("test");
+      this.tokenTable   = JactlTokenTable.create(builder.getEvents());
+    }
+
+    /**
+     * Whether this entry's AST can be used for the given file. If the AST has not yet
+     * been used for a file then it can be used by any file. Must be invoked while synchronised
+     * on the entry.
+     */
+    boolean canBeUsedFor(JactlFile file) {
+      return owner == null || owner == file;
+    }
+  }
+}
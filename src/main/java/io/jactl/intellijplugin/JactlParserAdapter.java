@@ -3,19 +3,21 @@ package io.jactl.intellijplugin;
 import com.intellij.codeInsight.completion.CompletionUtilCore;
 import com.intellij.lang.*;
 import com.intellij.lang.impl.PsiBuilderImpl;
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
-import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.impl.source.DummyHolder;
 import com.intellij.psi.impl.source.resolve.FileContextUtil;
 import com.intellij.psi.tree.IElementType;
-import com.intellij.util.FileContentUtil;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
 import io.jactl.*;
 import io.jactl.intellijplugin.common.JactlPlugin;
 import io.jactl.intellijplugin.extensions.debugger.JactlCodeFragment;
@@ -26,11 +28,13 @@ import io.jactl.runtime.ClassDescriptor;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static io.jactl.intellijplugin.psi.JactlListElementType.LIST;
@@ -39,10 +43,9 @@ public class JactlParserAdapter implements PsiParser {
 
   public static final Logger LOG = Logger.getInstance(JactlParserAdapter.class);
 
-  private static final Key<Long>         LAST_REFRESH = Key.create("JACTL_LAST_REFRESH");
-  private static final Key<ParsedScript> PARSED_SCRIPT = Key.create("JACTL_PARSED_SCRIPT");
+  private static final Key<ParsedScript> LAST_PARSED  = Key.create("JACTL_LAST_PARSED");
 
-  private static final int CACHE_SIZE = 100;
+  private static final Key<CachedValue<ParsedScript>> PARSED_SCRIPT = Key.create("JACTL_PARSED_SCRIPT");
 
   private Project project;
 
@@ -58,68 +61,95 @@ public class JactlParserAdapter implements PsiParser {
     JactlTokeniser tokeniser = (JactlTokeniser)((PsiBuilderImpl)builder).getLexer();
     PsiFile        userData  = builder.getUserData(FileContextUtil.CONTAINING_FILE_KEY);
     if (userData instanceof DummyHolder) {
-      // Used when parsing evaluation expressions in debugger
+      // Used when parsing evaluation expressions in debugger. Resolving modifies the AST so make
+      // sure we have our own copy rather than one shared via the parse cache.
+      tokeniser.retokenise();
       ParsedScript parsedScript = parse(tokeniser, null, builder);
       parsedScript.resolve(project, tokeniser.getJactl(), userData.getContext());
     }
     else {
+      // Only build the PSI here. Resolving is done lazily when first needed by the PSI queries.
       JactlFile file = userData instanceof JactlFile ? (JactlFile) userData : null;
-      parseAndResolve(project, tokeniser, file, builder);
+      buildPsi(project, tokeniser, file, builder);
     }
 
     ASTNode node = builder.getTreeBuilt();          // calls the ASTFactory.createComposite() etc...
     return node;
   }
 
-  private static ParsedScript parseAndResolve(Project project, JactlTokeniser tokeniser, JactlFile jactlFile, PsiBuilder builder) {
-    ParsedScript parsed = parse(tokeniser, jactlFile, builder);
-
+  /**
+   * Build the PSI (if builder is not null) from the parse events and return the (as yet
+   * unresolved) ParsedScript for the file.
+   */
+  private static ParsedScript buildPsi(Project project, JactlTokeniser tokeniser, JactlFile jactlFile, PsiBuilder builder) {
     if (jactlFile instanceof JactlCodeFragment) {
-      parsed.resolve(project, tokeniser.getJactl(), jactlFile.getContext());
+      // Code fragments are resolved within the context of the code being debugged so never share their AST
+      tokeniser.retokenise();
     }
-    else {
-      parsed.resolve(project, jactlFile);
+    JactlParseCache.Entry entry = tokeniser.getParseEntry();
+    ParsedScript          parsed;
+    synchronized (entry) {
+      if (!entry.canBeUsedFor(jactlFile) || entry.parsedScript != null && entry.parsedScript.isStale()) {
+        // AST belongs to another file with the same source (or it was resolved against classes
+        // that have since changed) so parse again to get our own
+        entry = tokeniser.retokenise();
+      }
+      parsed = parse(tokeniser, jactlFile, builder);
+      if (entry.parsedScript != null) {
+        // Already have ParsedScript (possibly already resolved) for this version of the file
+        parsed = entry.parsedScript;
+      }
+      else {
+        parsed.project           = project;
+        parsed.file              = jactlFile;
+        parsed.entry             = entry;
+        parsed.dependencyTracker = project == null || jactlFile == null ? ModificationTracker.NEVER_CHANGED
+                                                                        : JactlClassCache.getInstance(project).getModificationTracker(jactlFile);
+        parsed.globalsTracker    = project == null || jactlFile == null ? ModificationTracker.NEVER_CHANGED
+                                                                        : JactlGlobalsCache.getInstance(project).getModificationTracker(parsed);
+        entry.owner              = jactlFile;
+        entry.parsedScript       = parsed;
+      }
     }
 
-    jactlFile.putUserData(PARSED_SCRIPT, parsed);
+    if (jactlFile != null) {
+      // Hand over to getParsedScript() so that it doesn't need to parse again
+      jactlFile.putUserData(LAST_PARSED, parsed);
+    }
     return parsed;
   }
 
   private static ParsedScript parse(JactlTokeniser tokeniser, JactlFile file, PsiBuilder builder) {
-    ParsedScript parsed = new ParsedScript(tokeniser.getJactl(), tokeniser.getJactlContext(), tokeniser.getBufferSequence().toString());
+    ParsedScript parsed = new ParsedScript(tokeniser.getJactl(), tokeniser.getJactlContext(), tokeniser.getParseEntry().text);
 
-    //List<JactlTokenBuilder.Event> events = tokeniser.getEvents().stream().filter(e -> !e.isDropped()).collect(Collectors.toList());
-    List<JactlTokenBuilder.Event> events = tokeniser.getEvents();
+    List<JactlTokenBuilder.Event> events     = tokeniser.getEvents();
+    JactlTokenTable               tokenTable = tokeniser.getTokenTable();
+    int                           nextToken  = 0;        // Index into token table of next token
+    int[]                         nextName   = null;     // Index of next name START event (built on demand)
     for (int i = 0; i < events.size(); i++) {
       JactlTokenBuilder.Event event = events.get(i);
       if (event.isDropped()) {
         continue;
       }
       if (event.isToken()) {
-        if (builder != null && !event.getToken().isCommentOrWhiteSpace()) {
+        int tableIndex = ((JactlTokenBuilder.TokenEvent) event).tableIndex;
+        if (builder != null && tokenTable.isSignificant(tableIndex)) {
           builder.advanceLexer();
         }
+        nextToken = tableIndex + 1;
         continue;
       }
       JactlTokenBuilder.MarkerEvent markerEvent = (JactlTokenBuilder.MarkerEvent) event;
       JactlTokenBuilder.JactlMarker marker      = markerEvent.getMarker();
 
-      if (marker.type == JactlExprElementType.CLOSURE && ((Expr.Closure) marker.astNode).closureIsBlock) {
-        // Closure was turned into a block so ignore it
+      if (isIgnored(marker)) {
         continue;
       }
       if (markerEvent.state == JactlTokenBuilder.MarkerEvent.State.START) {
         marker.psiMarker = builder == null ? null : builder.mark();
         if (!markerEvent.isToken()) {
           // Find next non-whitespace/non-comment token in order to get offset
-          marker.offset = -1;
-          for (int j = i; j < events.size(); j++) {
-            JactlTokenBuilder.Event token = events.get(j);
-            if (token.isToken() && !token.getToken().isCommentOrWhiteSpace()) {
-              marker.offset = token.getToken().getOffset();
-              break;
-            }
-          }
+          marker.offset = tokenTable.nextSignificantOffset(nextToken);
           if (marker.offset == -1) {
             throw new IllegalStateException("Couldn't find a token after " + markerEvent);
           }
@@ -127,12 +157,11 @@ public class JactlParserAdapter implements PsiParser {
           if (marker.type == JactlStmtElementType.FUN_DECL ||
               marker.type == JactlStmtElementType.CLASS_DECL && marker.astNode instanceof Stmt.ClassDecl && !((Stmt.ClassDecl) marker.astNode).isScriptClass()) {
             // Find first name as this will be location we want to jump to when jumping to declaration
-            marker.nameKey = IntStream.range(i, events.size())
-                                      .mapToObj(events::get)
-                                      .filter(e -> e.isStart() && !e.isToken() && e.getMarker().type instanceof JactlNameElementType)
-                                      .map(e -> new JactlAstKey(file, e.getMarker().type, e.getMarker().offset))
-                                      .findFirst()
-                                      .orElse(null);
+            if (nextName == null) {
+              nextName = nextNameEvents(events);
+            }
+            JactlTokenBuilder.JactlMarker nameMarker = nextName[i] == -1 ? null : events.get(nextName[i]).getMarker();
+            marker.nameKey = nameMarker == null ? null : new JactlAstKey(nameMarker.type, nameMarker.offset);
           }
         }
       }
@@ -142,13 +171,13 @@ public class JactlParserAdapter implements PsiParser {
           marker.doneFlagged = true;
         }
         else {
-          parsed.addASTNode(file, marker.type, marker.offset, marker.astNode);
+          parsed.addASTNode(marker.type, marker.offset, marker.astNode);
 
           // Special case for Stmt.VarDecl and Stmt.FunDecl since resolver resolves to the Expr.VarDecl inside it we need
           // to make the Expr.VarDecl point back to the Stmt.VarDecl
           if (marker.astNode instanceof Stmt.VarDecl) {
             Stmt.VarDecl stmt = (Stmt.VarDecl) marker.astNode;
-            stmt.declExpr.setUserData(new JactlAstKey(file, marker.type, marker.offset));
+            stmt.declExpr.setUserData(new JactlAstKey(marker.type, marker.offset));
           }
           else if (marker.astNode instanceof Stmt.FunDecl) {
             Stmt.FunDecl stmt = (Stmt.FunDecl) marker.astNode;
@@ -175,23 +204,155 @@ public class JactlParserAdapter implements PsiParser {
     return parsed;
   }
 
+  /**
+   * For each event find the index of the first START event for a name at or after it.
+   * Done as a single backwards pass so that looking up the name for each function/class
+   * declaration is constant time.
+   * @param events  the events
+   * @return array of event indexes (-1 if there is no such event)
+   */
+  private static int[] nextNameEvents(List<JactlTokenBuilder.Event> events) {
+    int[] result = new int[events.size()];
+    int   next   = -1;
+    for (int i = events.size() - 1; i >= 0; i--) {
+      JactlTokenBuilder.Event event = events.get(i);
+      if (event.isStart() && !event.isToken() && event.getMarker().type instanceof JactlNameElementType) {
+        next = i;
+      }
+      result[i] = next;
+    }
+    return result;
+  }
+
+  /**
+   * Parse the contents of a reparseable block or closure. The tokeniser parses the text of the
+   * block/closure with a prefix so we skip the events for the prefix and build the PSI only for
+   * the events within the marker of the block/closure itself.
+   * <p>No ParsedScript is created here. The PSI queries will detect that the source code has
+   * changed and will reparse and resolve the whole file when they need to.</p>
+   * @param root     the type of the block/closure being reparsed
+   * @param builder  the PsiBuilder for the text of the block/closure
+   * @return true if text was parsed as a single block/closure of the right type
+   */
+  public static boolean parseFragment(JactlReparseableElementType root, @NotNull PsiBuilder builder) {
+    ProgressIndicatorProvider.checkCanceled();
+    JactlTokeniser                tokeniser  = (JactlTokeniser)((PsiBuilderImpl)builder).getLexer();
+    PsiBuilder.Marker             rootMarker = builder.mark();
+    List<JactlTokenBuilder.Event> events     = tokeniser.getEvents();
+    JactlTokenTable               tokenTable = tokeniser.getTokenTable();
+    int                           prefixLen  = tokeniser.getFragmentPrefix().length();
+
+    // Find the START and END events for the block/closure
+    JactlTokenBuilder.JactlMarker fragment   = null;
+    int                           start      = -1;
+    int                           end        = -1;
+    int                           nextToken  = 0;
+    for (int i = 0; i < events.size() && end == -1; i++) {
+      JactlTokenBuilder.Event event = events.get(i);
+      if (event.isToken()) {
+        nextToken = ((JactlTokenBuilder.TokenEvent) event).tableIndex + 1;
+      }
+      else if (!event.isDropped() && !isIgnored(event.getMarker())) {
+        if (fragment == null && event.isStart() && event.getMarker().type == root && tokenTable.nextSignificantOffset(nextToken) == prefixLen) {
+          fragment = event.getMarker();
+          start    = i;
+        }
+        else if (fragment != null && event.getMarker() == fragment) {
+          end = i;
+        }
+      }
+    }
+
+    // Must be nothing other than whitespace/comments after the block/closure
+    boolean valid = end != -1 && fragment.error == null;
+    for (int i = end + 1; valid && i < events.size(); i++) {
+      JactlTokenBuilder.Event event = events.get(i);
+      if (event.isToken()) {
+        int tableIndex = ((JactlTokenBuilder.TokenEvent) event).tableIndex;
+        valid = !tokenTable.isSignificant(tableIndex) || tokenTable.isEof(tableIndex);
+      }
+    }
+
+    if (valid) {
+      for (int i = start + 1; i < end; i++) {
+        JactlTokenBuilder.Event event = events.get(i);
+        if (event.isDropped()) {
+          continue;
+        }
+        if (event.isToken()) {
+          if (tokenTable.isSignificant(((JactlTokenBuilder.TokenEvent) event).tableIndex)) {
+            builder.advanceLexer();
+          }
+          continue;
+        }
+        JactlTokenBuilder.JactlMarker marker = event.getMarker();
+        if (isIgnored(marker)) {
+          continue;
+        }
+        if (event.isStart()) {
+          marker.psiMarker = builder.mark();
+        }
+        else if (marker.error != null) {
+          marker.psiMarker.error(marker.error.getErrorMessage());
+        }
+        else {
+          marker.psiMarker.done(marker.type);
+        }
+      }
+    }
+
+    // Anything left over (everything if we could not parse it) belongs to the root
+    while (!builder.eof()) {
+      builder.advanceLexer();
+    }
+    rootMarker.done(root);
+    return valid;
+  }
+
+  private static boolean isIgnored(JactlTokenBuilder.JactlMarker marker) {
+    // Closure that was turned into a block
+    return marker.type == JactlExprElementType.CLOSURE && ((Expr.Closure) marker.astNode).closureIsBlock;
+  }
+
   public static JactlUserDataHolder getJactlAstNode(JactlPsiElement element) {
-    return getJactlAstNode(element.getFile(), element.getSourceCode(), element.getAstKey());
+    return getJactlAstNode(element.getFile(), element.getPackedAstKey());
   }
 
   @NotNull
   private static ParsedScript getParsedScript(JactlPsiElement element) {
-    return getParsedScript(element.getFile(), element.getSourceCode());
+    return getParsedScript(element.getFile());
   }
 
-  private static ParsedScript getParsedScript(JactlFile file, String sourceCode) {
-    ParsedScript parsedScript = file.getUserData(PARSED_SCRIPT);
-    if (parsedScript != null && parsedScript.getSourceCode().equals(sourceCode.intern())) {
-      return parsedScript;
-    }
-    JactlTokeniser tokeniser = new JactlTokeniser(file.getProject());
-    tokeniser.tokenise(sourceCode, 0, sourceCode.length());
-    return parseAndResolve(file.getProject(), tokeniser, file, null);
+  /**
+   * Get the resolved ParsedScript for the current version of the file. The ParsedScript is cached
+   * against the file's modification count so checking whether it is still valid is cheap. When
+   * a new version is needed we use the one created when the PSI was built if its source matches
+   * (only needs to be checked once per version) and only otherwise parse the file again.
+   */
+  static ParsedScript getParsedScript(JactlFile file) {
+    ParsedScript parsedScript = getCachedParsedScript(file);
+    parsedScript.ensureResolved();
+    return parsedScript;
+  }
+
+  private static ParsedScript getCachedParsedScript(JactlFile file) {
+    return CachedValuesManager.getCachedValue(file, PARSED_SCRIPT, () -> {
+      String       sourceCode = file.getText();
+      ParsedScript parsed     = file.getUserData(LAST_PARSED);
+      if (parsed != null) {
+        // Cached value now owns it so don't keep a second reference on the file (unless a newer
+        // one has been handed over in the meantime)
+        file.replace(LAST_PARSED, parsed, null);
+      }
+      if (parsed == null || parsed.isStale() || !parsed.getSourceCode().equals(sourceCode)) {
+        JactlTokeniser tokeniser = new JactlTokeniser(file.getProject());
+        parsed = JactlParseCache.withVersion(file, () -> {
+          tokeniser.tokenise(sourceCode, 0, sourceCode.length());
+          return buildPsi(file.getProject(), tokeniser, file, null);
+        });
+      }
+      return CachedValueProvider.Result.create(parsed, file, parsed.dependencyTracker, parsed.globalsTracker);
+    });
   }
 
   public static final class FieldDescriptor {
@@ -224,22 +385,42 @@ public class JactlParserAdapter implements PsiParser {
   }
 
   /**
-   * Get the Stmt.ClassDecl for given class in given file
+   * Get the Stmt.ClassDecl for given class in given file. If this thread is already resolving
+   * the file (A needs B which needs A) then we return the class as resolved so far by that
+   * resolve (see isBeingResolved()).
    * @param file        the JactlFile
-   * @param sourceCode  the source code
    * @param className   the class name (A$B$C) without package name
    * @return
    */
-  public static Stmt.ClassDecl getClassDecl(JactlFile file, String sourceCode, String className) {
-    return getParsedScript(file, sourceCode).getClassDecl(className);
+  public static Stmt.ClassDecl getClassDecl(JactlFile file, String className) {
+    ParsedScript resolving = ParsedScript.resolvingOnThisThread(file);
+    if (resolving != null) {
+      return resolving.getPartialClassDecl(className);
+    }
+    return getParsedScript(file).getClassDecl(className);
   }
 
-  public static JactlUserDataHolder getJactlAstNode(JactlFile file, String sourceCode, JactlAstKey astKey) {
-    ParsedScript        parsed = getParsedScript(astKey.getFile(), sourceCode);
-    JactlUserDataHolder result = parsed.getJactlAstNode(astKey);
+  /**
+   * Whether this thread is part way through resolving the given file. Any class returned by
+   * getClassDecl() for the file while this is the case has not been fully resolved so must
+   * not be cached.
+   * @param file  the JactlFile
+   * @return true if file is being resolved
+   */
+  public static boolean isBeingResolved(JactlFile file) {
+    return ParsedScript.resolvingOnThisThread(file) != null;
+  }
+
+  public static JactlUserDataHolder getJactlAstNode(JactlFile file, JactlAstKey astKey) {
+    ParsedScript        parsed = getParsedScript(file);
+    JactlUserDataHolder result = parsed.getJactlAstNode(astKey.getPacked());
     return result;
   }
 
+  public static JactlUserDataHolder getJactlAstNode(JactlFile file, long packedAstKey) {
+    return getParsedScript(file).getJactlAstNode(packedAstKey);
+  }
+
   public static List<ClassDescriptor> getClasses(JactlPsiElement element) {
     return getParsedScript(element).getClasses(element);
   }
@@ -249,11 +430,11 @@ public class JactlParserAdapter implements PsiParser {
     if (parsedScript == null) {
       return null;
     }
-    return parsedScript.getClass(element.getAstKey());
+    return parsedScript.getClass(element.getPackedAstKey());
   }
 
-  public static List<String> getErrors(JactlFile file, String sourceCode, ASTNode node) {
-    return getParsedScript(file, sourceCode).getErrors(node);
+  public static List<String> getErrors(JactlFile file, ASTNode node) {
+    return getParsedScript(file).getErrors(node);
   }
 
   public static Stmt.ClassDecl getClassDecl(Project project, String fqClassName) {
@@ -261,19 +442,19 @@ public class JactlParserAdapter implements PsiParser {
     if (file == null) {
       return null;
     }
-    return getClassDecl(file, file.getText(), JactlPlugin.removePackage(fqClassName));
+    return getClassDecl(file, JactlPlugin.removePackage(fqClassName));
   }
 
   public static boolean isImported(JactlPsiElement className) {
-    ParsedScript parser = getParsedScript(className.getFile(), className.getSourceCode());
+    ParsedScript parser = getParsedScript(className.getFile());
     return parser.resolver.getImports().containsKey(className.getText());
   }
 
   //////////////////////////////////////////////////
 
-  private static class ParsedScript {
+  static class ParsedScript {
     String                                sourceCode;
-    Map<JactlAstKey, JactlUserDataHolder> jactlAstNodes = new HashMap<>();
+    JactlAstNodeMap<JactlUserDataHolder>  jactlAstNodes = new JactlAstNodeMap<>();
     Stmt.ClassDecl                        jactlAst;
     JactlContext                          jactlContext;
     Resolver                              resolver;
@@ -281,6 +462,27 @@ public class JactlParserAdapter implements PsiParser {
     int                                   firstAstNodeOffset = Integer.MAX_VALUE;
     Map<Integer, List<String>>            errors        = new HashMap<>();
 
+    // Used to resolve lazily
+    Project                               project;
+    JactlFile                             file;
+    JactlParseCache.Entry                 entry;
+    volatile boolean                      resolved;
+    boolean                               astUsed;                // Whether a resolve has been attempted on jactlAst
+    ParsedScript                          attempt;                // Resolve in progress (only seen by resolving thread)
+    boolean                               partialHandedOut;       // Whether attempt gave out classes before it finished
+    ModificationTracker                   dependencyTracker = ModificationTracker.NEVER_CHANGED;
+    long                                  dependencyCount;        // Count of dependencyTracker when resolved
+    ModificationTracker                   globalsTracker = ModificationTracker.NEVER_CHANGED;
+    long                                  globalsCount;           // Count of globalsTracker when resolved
+    volatile Map<String,String>           referencedGlobals;      // Type of global (or null) for each name in script when resolved
+    boolean                               globalsErrorAtResolve;  // Whether evaluating the globals failed when resolved
+    private final ReentrantLock           resolveLock = new ReentrantLock();   // Used if no entry
+    private final long                    lockOrder   = NEXT_LOCK_ORDER.incrementAndGet();
+
+    private static final long                              RESOLVE_LOCK_POLL_MS = 50;
+    private static final AtomicLong                        NEXT_LOCK_ORDER      = new AtomicLong();
+    private static final ThreadLocal<Deque<ParsedScript>>  RESOLVING            = ThreadLocal.withInitial(ArrayDeque::new);
+
     ParsedScript(Stmt.ClassDecl jactlAst, JactlContext jactlContext, String sourceCode) {
       this.jactlAst = jactlAst;
       this.jactlContext = jactlContext;
@@ -288,15 +490,191 @@ public class JactlParserAdapter implements PsiParser {
     }
 
     public String getSourceCode() {
-      return sourceCode.intern();
+      return sourceCode;
     }
 
-    public void addASTNode(JactlFile file, IElementType type, int offset, JactlUserDataHolder node) {
-      JactlAstKey key = new JactlAstKey(file, type, offset);
+    /**
+     * Whether we have been resolved against classes in other files, or against globals, that
+     * have since changed
+     */
+    boolean isStale() {
+      return resolved && (dependencyTracker.getModificationCount() != dependencyCount ||
+                          globalsTracker.getModificationCount() != globalsCount);
+    }
+
+    /**
+     * Resolve the AST if not already resolved. This is done on demand (from the annotator,
+     * completion, references, etc.) rather than when the PSI is built so that rebuilding the
+     * PSI after each edit never has to wait for the resolve.
+     * <p>Resolving modifies the AST so each resolve is done as a separate attempt (see
+     * newAttempt()) whose results are only published to this ParsedScript once it has succeeded.
+     * If the attempt is cancelled (or fails with any other exception) part way through then we
+     * just discard it and the next request makes a new attempt.</p>
+     * <p>Resolving one file can require classes from other files to be resolved. If this thread
+     * is already resolving us (A needs B which needs A) then getClassDecl() gets the classes from
+     * our attempt as resolved so far without waiting for it (see getPartialClassDecl()). Files
+     * can also be resolved concurrently (see JactlPreParseActivity) so to avoid two threads
+     * waiting for each other we only block waiting for a resolve lock that is ordered after all
+     * of the ones that this thread already holds. Otherwise we only try the lock and if another
+     * thread has it we cancel so that our caller restarts rather than risk a deadlock.</p>
+     */
+    void ensureResolved() {
+      if (resolved) {
+        return;
+      }
+      Deque<ParsedScript> resolving = RESOLVING.get();
+      if (resolving.contains(this)) {
+        throw new IllegalStateException("Recursive resolve of " + (file == null ? "script" : file.getName()));
+      }
+      ReentrantLock lock = entry == null ? resolveLock : entry.resolveLock;
+      if (resolving.stream().allMatch(p -> p.lockOrder < lockOrder)) {
+        lockCancellably(lock);
+      }
+      else if (!lock.tryLock()) {
+        throw new ProcessCanceledException();
+      }
+      try {
+        resolveLocked(resolving);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Resolve while holding the resolve lock. Note that we don't synchronise on the entry
+     * here since buildPsi() does that and must never have to wait for a resolve. When
+     * buildPsi() reuses our AST it only sets the same keys on the AST nodes as the first
+     * build did (before we were published) so it doesn't interfere with the resolve.
+     */
+    private void resolveLocked(Deque<ParsedScript> resolving) {
+      if (resolved) {
+        return;
+      }
+      ProgressManager.checkCanceled();
+      ParsedScript newAttempt = newAttempt();
+      newAttempt.dependencyCount = dependencyTracker.getModificationCount();
+      newAttempt.globalsCount    = globalsTracker.getModificationCount();
+      attempt          = newAttempt;
+      partialHandedOut = false;
+      resolving.addLast(this);
+      boolean success = false;
+      try {
+        JactlClassCache.withRequestingFile(file, () -> {
+          if (file instanceof JactlCodeFragment) {
+            newAttempt.resolve(project, newAttempt.jactlAst, file.getContext());
+          }
+          else {
+            newAttempt.resolve(project, file);
+          }
+          return null;
+        });
+        publish(newAttempt);
+        success = true;
+      }
+      finally {
+        resolving.removeLast();
+        attempt = null;
+        if (!success && partialHandedOut && file != null && file.getVirtualFile() != null && !project.isDisposed()) {
+          // Files resolved against our partially resolved classes need to be resolved again
+          JactlClassCache.getInstance(project).invalidate(file.getVirtualFile());
+        }
+      }
+    }
+
+    /**
+     * Get a ParsedScript to resolve. The first attempt can use our own AST but once an attempt
+     * has been made the AST may have been left partially resolved so we parse the source again
+     * (without going through the parse cache) to get a new AST.
+     */
+    private ParsedScript newAttempt() {
+      ParsedScript newAttempt;
+      if (!astUsed) {
+        astUsed    = true;
+        newAttempt = new ParsedScript(jactlAst, jactlContext, sourceCode);
+        newAttempt.jactlAstNodes      = jactlAstNodes;
+        newAttempt.firstAstNodeOffset = firstAstNodeOffset;
+      }
+      else {
+        JactlTokeniser tokeniser = new JactlTokeniser(project);
+        newAttempt = JactlParseCache.withVersion(null, () -> {
+          tokeniser.tokenise(sourceCode, 0, sourceCode.length());
+          return parse(tokeniser, file, null);
+        });
+      }
+      newAttempt.project = project;
+      newAttempt.file    = file;
+      return newAttempt;
+    }
+
+    /**
+     * Take the results of a successful attempt. Nothing reads these fields until resolved
+     * has been set.
+     */
+    private void publish(ParsedScript newAttempt) {
+      jactlAst              = newAttempt.jactlAst;
+      jactlAstNodes         = newAttempt.jactlAstNodes;
+      firstAstNodeOffset    = newAttempt.firstAstNodeOffset;
+      resolver              = newAttempt.resolver;
+      globalsError          = newAttempt.globalsError;
+      errors                = newAttempt.errors;
+      dependencyCount       = newAttempt.dependencyCount;
+      globalsCount          = newAttempt.globalsCount;
+      globalsErrorAtResolve = newAttempt.globalsErrorAtResolve;
+      referencedGlobals     = newAttempt.referencedGlobals;
+      resolved              = true;
+    }
+
+    /**
+     * Get the ParsedScript for the given file that this thread is currently resolving
+     * @param file  the file
+     * @return the ParsedScript or null if not resolving the file
+     */
+    static ParsedScript resolvingOnThisThread(JactlFile file) {
+      for (ParsedScript parsed: RESOLVING.get()) {
+        if (parsed.file == file) {
+          return parsed;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Get the class from the attempt being resolved by this thread. The class has been
+     * declared but may not have been fully resolved yet. If the attempt then fails we
+     * invalidate the files that may have used it.
+     * @param name  the class name (A$B$C)
+     * @return the Stmt.ClassDecl or null
+     */
+    Stmt.ClassDecl getPartialClassDecl(String name) {
+      if (attempt == null || attempt.resolver == null) {
+        return null;
+      }
+      partialHandedOut = true;
+      return attempt.resolver.getClassDecl(name);
+    }
+
+    /**
+     * Wait for the resolve lock (held while another thread resolves the same AST) in a way
+     * that can be cancelled.
+     */
+    private static void lockCancellably(ReentrantLock lock) {
+      try {
+        while (!lock.tryLock(RESOLVE_LOCK_POLL_MS, TimeUnit.MILLISECONDS)) {
+          ProgressManager.checkCanceled();
+        }
+      }
+      catch (InterruptedException e) {
+        throw new ProcessCanceledException(e);
+      }
+    }
+
+    public void addASTNode(IElementType type, int offset, JactlUserDataHolder node) {
+      JactlAstKey key = new JactlAstKey(type, offset);
       if (offset < firstAstNodeOffset) {
         firstAstNodeOffset = offset;
       }
-      jactlAstNodes.put(key, node);
+      jactlAstNodes.put(key.getPacked(), node);
       if (node != null) {
         node.setUserData(key);
         return;
@@ -307,16 +685,16 @@ public class JactlParserAdapter implements PsiParser {
     }
 
     private JactlUserDataHolder lookupJactlAstNode(JactlPsiElement element) {
-      if (sourceCode.equals(element.getSourceCode())) {
-        return jactlAstNodes.get(element.getAstKey());
+      if (element.getFile() == file) {
+        return jactlAstNodes.get(element.getPackedAstKey());
       }
       return element.getJactlAstNode();
     }
 
-    public JactlUserDataHolder getJactlAstNode(JactlAstKey astKey) {
+    public JactlUserDataHolder getJactlAstNode(long astKey) {
       JactlUserDataHolder result = jactlAstNodes.get(astKey);
       if (result == null) {
-        LOG.info("Returning null for AST Node: key=" + astKey);
+        LOG.info("Returning null for AST Node: key=" + JactlAstKey.toString(astKey));
       }
       return result;
     }
@@ -331,8 +709,7 @@ public class JactlParserAdapter implements PsiParser {
     }
 
     public List<Object> getVariablesAndFunctions(JactlPsiElement parentElement, JactlPsiElement element) {
-      JactlAstKey astKey = parentElement.getAstKey();
-      JactlUserDataHolder parentNode = getJactlAstNode(astKey);
+      JactlUserDataHolder parentNode = getJactlAstNode(parentElement.getPackedAstKey());
       if (parentNode == null) {
         return Collections.EMPTY_LIST;
       }
@@ -370,7 +747,7 @@ public class JactlParserAdapter implements PsiParser {
           // location if we step into different file from starting file
           if (parent.getLocation() != null) {
             String source        = parent.getLocation().getSource();
-            Token  locationToUse = source.equals(file.getSourceCode()) ? location : contextLocation;
+            Token  locationToUse = source.equals(sourceCode) ? location : contextLocation;
             Stream.concat(parent.variables.values().stream().filter(v -> Utils.isEarlier(v.location, locationToUse)),
                           parent.functions.stream().map(f -> f.declExpr.varDecl))
                   .filter(v -> !v.name.getStringValue().startsWith(Utils.JACTL_PREFIX))
@@ -404,14 +781,14 @@ public class JactlParserAdapter implements PsiParser {
       // Make sure we get element that is not a type since we can't set block on types as
       // they are shared
       element = JactlUtils.getJactlPsiParent(element);
-      Stmt.Block block = getBlock(element.getAstKey());
+      Stmt.Block block = getBlock(element.getPackedAstKey());
       if (block == null) {
         return Collections.EMPTY_LIST;
       }
       return getClasses(element.getProject(), block);
     }
 
-    public ClassDescriptor getClass(JactlAstKey astKey) {
+    public ClassDescriptor getClass(long astKey) {
       Stmt.Block block = getBlock(astKey);
       if (block == null) {
         return null;
@@ -419,7 +796,7 @@ public class JactlParserAdapter implements PsiParser {
       return block.owningClass.classDescriptor;
     }
 
-    private Stmt.Block getBlock(JactlAstKey astKey) {
+    private Stmt.Block getBlock(long astKey) {
       JactlUserDataHolder astNode = getJactlAstNode(astKey);
       if (astNode == null) {
         return null;
@@ -486,6 +863,10 @@ public class JactlParserAdapter implements PsiParser {
     public void resolve(Project project, JactlFile file) {
       boolean globalsFile = JactlUtils.isGlobalsFile(file);
       Map<String,Object> globals = getGlobals(project);
+      if (!globalsFile) {
+        recordGlobals(globals);
+      }
+      resolveContext();
       resolver = new Resolver(jactlContext, globals, jactlAst.location);
       String packageName = JactlUtils.packageNameFor(file);
       if (packageName == null && !globalsFile && file != null && !file.getName().equals(JactlUtils.CODE_FRAGMENT_FILE_NAME)) {
@@ -502,15 +883,6 @@ public class JactlParserAdapter implements PsiParser {
         errors.putIfAbsent(offset, new ArrayList<>());
         errors.get(offset).add(e.getErrorMessage());
       });
-      if (globalsFile) {
-        Long lastRefresh = file.getUserData(LAST_REFRESH);
-        if (lastRefresh == null || file.getModificationStamp() > lastRefresh) {
-          file.putUserData(LAST_REFRESH, file.getModificationStamp());
-          // Get all open files (excluding the globals script) and reparse in case they depend on any globals
-          List<VirtualFile> openFiles = Stream.of(FileEditorManager.getInstance(project).getOpenFiles()).filter(vf -> !vf.equals(file.getVirtualFile())).collect(Collectors.toList());
-          ApplicationManager.getApplication().invokeLater(() -> FileContentUtil.reparseFiles(project, openFiles, false));
-        }
-      }
     }
 
     // For resolving debugger evaluation expressions for completions
@@ -521,6 +893,7 @@ public class JactlParserAdapter implements PsiParser {
         return;
       }
       Map<String,Object> globals = getGlobals(project);
+      resolveContext();
       resolver = new Resolver(jactlContext, globals, jactlAst.location);
 
       // Turn expression into a called closure so we can resolve within context of script we are debugging
@@ -545,6 +918,48 @@ public class JactlParserAdapter implements PsiParser {
       });
     }
 
+    /**
+     * Use our own JactlContext for resolving rather than the shared one we were parsed with
+     * (see JactlContextService). A context remembers the classes it has looked up so with a
+     * shared context only the first file to look up a class would go through JactlClassCache
+     * and be recorded as depending on it.
+     */
+    private void resolveContext() {
+      jactlContext = JactlUtils.createJactlContext(project);
+    }
+
+    /**
+     * Remember what the globals looked like for the names used in the script (and any
+     * error evaluating the globals) so that when the globals change we can tell whether
+     * this script needs to be reparsed. We record every identifier in the script (not just
+     * those that are currently globals) since a name that is not yet a global may become one.
+     * Only scripts can refer to globals.
+     */
+    private void recordGlobals(Map<String,Object> globals) {
+      Map<String,String> referenced = new HashMap<>();
+      if (jactlAst.isScriptClass()) {
+        JactlGlobalsCache.identifiers(sourceCode).forEach(name -> referenced.put(name, JactlGlobalsCache.typeOf(globals, name)));
+      }
+      referencedGlobals     = referenced;
+      globalsErrorAtResolve = globalsError != null;
+    }
+
+    /**
+     * Whether we were resolved against globals that differ from the given globals for any
+     * of the names we use (added, removed, or changed type) or if evaluating the globals has
+     * started or stopped failing
+     */
+    boolean usesChangedGlobals(Map<String,Object> globals, GlobalsException error) {
+      Map<String,String> referenced = referencedGlobals;
+      if (!resolved || referenced == null) {
+        return false;
+      }
+      if (globalsErrorAtResolve != (error != null)) {
+        return true;
+      }
+      return referenced.entrySet().stream().anyMatch(entry -> !Objects.equals(entry.getValue(), JactlGlobalsCache.typeOf(globals, entry.getKey())));
+    }
+
     private Map<String,Object> getGlobals(Project project) {
       globalsError = null;
       try {
@@ -38,8 +38,19 @@ public class JactlTokenBuilder extends BuilderImpl {
     boolean isStart();
   }
 
-  public static class TokenEvent implements Event {
+  /**
+   * Events are kept in a doubly linked list so that JactlMarker.precede() can insert
+   * the new START event directly before the START event of the existing marker
+   * without having to search for it.
+   */
+  abstract static class LinkedEvent implements Event {
+    LinkedEvent prev;
+    LinkedEvent next;
+  }
+
+  public static class TokenEvent extends LinkedEvent {
     Token token;
+    int   tableIndex = -1;     // Index into JactlTokenTable
 
     TokenEvent(Token token) {
       this.token = token;
@@ -53,7 +64,7 @@ public class JactlTokenBuilder extends BuilderImpl {
     @Override public JactlMarker getMarker() { return null; }
   }
 
-  public static class MarkerEvent implements Event {
+  public static class MarkerEvent extends LinkedEvent {
     JactlMarker marker;
     public enum State {START, END};
     public MarkerEvent.State state;
@@ -73,31 +84,81 @@ public class JactlTokenBuilder extends BuilderImpl {
 
   int                   counter = 0;
   int                   indent  = 0;
-  List<Event>           events  = new ArrayList<>();
+  LinkedEvent           head;
+  LinkedEvent           tail;
+  int                   eventCount;
+  List<Event>           events;              // Created on demand from the linked list
   LinkedHashSet<String> errors  = new LinkedHashSet<>();
 
   public JactlTokenBuilder(Tokeniser tokeniser) {
     super(tokeniser);
   }
 
-  void pushEvent(Event evt)  { events.add(evt); }
-  Event popEvent()           { return events.remove(events.size() - 1); }
+  void pushEvent(LinkedEvent evt) {
+    evt.prev = tail;
+    evt.next = null;
+    if (tail == null) {
+      head = evt;
+    }
+    else {
+      tail.next = evt;
+    }
+    tail = evt;
+    eventCount++;
+    events = null;
+  }
 
-  public List<Event> getEvents() { return events; }
-  public boolean hasErrors()     { return !errors.isEmpty(); }
+  Event popEvent() {
+    LinkedEvent evt = tail;
+    tail = evt.prev;
+    if (tail == null) {
+      head = null;
+    }
+    else {
+      tail.next = null;
+    }
+    evt.prev = null;
+    eventCount--;
+    events = null;
+    return evt;
+  }
 
-  void insertEventBefore(JactlMarker newMarker, JactlMarker existing) {
-    int idx = -1;
-    for (int i = 0; i < events.size(); i++) {
-      if (events.get(i).getMarker() == existing) {
-        idx = i;
-        break;
+  /**
+   * Get the events as a list. The list is built once (in linear time) when first
+   * asked for after the parse has finished.
+   * @return the events
+   */
+  public List<Event> getEvents() {
+    if (events == null) {
+      List<Event> list = new ArrayList<>(eventCount);
+      for (LinkedEvent evt = head; evt != null; evt = evt.next) {
+        list.add(evt);
       }
+      events = list;
     }
-    if (idx == -1) {
+    return events;
+  }
+
+  public boolean hasErrors() { return !errors.isEmpty(); }
+
+  void insertEventBefore(JactlMarker newMarker, JactlMarker existing) {
+    LinkedEvent before = existing.startEvent;
+    if (before == null) {
       throw new IllegalStateException("There is no event: " + existing);
     }
-    events.add(idx, new MarkerEvent(newMarker, MarkerEvent.State.START));
+    MarkerEvent evt = new MarkerEvent(newMarker, MarkerEvent.State.START);
+    newMarker.startEvent = evt;
+    evt.prev = before.prev;
+    evt.next = before;
+    if (before.prev == null) {
+      head = evt;
+    }
+    else {
+      before.prev.next = evt;
+    }
+    before.prev = evt;
+    eventCount++;
+    events = null;
   }
 
   void debug(String msg) {
@@ -113,7 +174,8 @@ public class JactlTokenBuilder extends BuilderImpl {
   public Marker mark() {
     ProgressIndicatorProvider.checkCanceled();
     JactlMarker marker = new JactlMarker(super.mark(), ++counter);
-    pushEvent(new MarkerEvent(marker, MarkerEvent.State.START));
+    marker.startEvent  = new MarkerEvent(marker, MarkerEvent.State.START);
+    pushEvent(marker.startEvent);
     return marker;
   }
 
@@ -129,6 +191,7 @@ public class JactlTokenBuilder extends BuilderImpl {
   public class JactlMarker implements Marker {
     public PsiBuilder.Marker psiMarker;
     Marker              tokenMarker;
+    MarkerEvent         startEvent;
     boolean             doneFlagged = false;
     public IElementType type;
     int                 id;
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import io.jactl.JactlError;
+import io.jactl.Token;
+import io.jactl.intellijplugin.psi.JactlTokenType;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact table of the tokens for one version of a buffer, built once after the
+ * parse has finished. Offsets, lengths, and token types (TokenType ordinals) are held
+ * in parallel int arrays and runs of EOL/WHITESPACE tokens are merged into a single
+ * WHITESPACE entry since that is what IntelliJ expects for formatting purposes.
+ * <p>Each TokenEvent in the builder's event list records the index of the entry
+ * it belongs to so that the lexer and the parser adapter can both walk the same
+ * table without creating any further objects.</p>
+ * <p>The index of the next significant token at or after each entry is precomputed
+ * so that finding the offset for a marker is constant time.</p>
+ */
+public class JactlTokenTable {
+
+  private static final io.jactl.TokenType[] TOKEN_TYPES   = io.jactl.TokenType.values();
+  private static final int                  BAD_CHARACTER = -1;
+  private static final int                  WHITESPACE    = io.jactl.TokenType.WHITESPACE.ordinal();
+  private static final int                  COMMENT       = io.jactl.TokenType.COMMENT.ordinal();
+  private static final int                  EOF           = io.jactl.TokenType.EOF.ordinal();
+
+  private int[] offsets;
+  private int[] lengths;
+  private int[] types;
+  private int[] nextSignificant;     // Index of first significant token at or after each index (or size)
+  private int   size;
+
+  private JactlTokenTable(int capacity) {
+    offsets = new int[Math.max(capacity, 16)];
+    lengths = new int[offsets.length];
+    types   = new int[offsets.length];
+  }
+
+  /**
+   * Build the table from the token events in the given event list and set the
+   * table index on each TokenEvent.
+   * @param events  the events from the JactlTokenBuilder
+   * @return the token table
+   */
+  public static JactlTokenTable create(List<JactlTokenBuilder.Event> events) {
+    JactlTokenTable table = new JactlTokenTable(events.size() / 2);
+    for (JactlTokenBuilder.Event event: events) {
+      if (event.isToken()) {
+        JactlTokenBuilder.TokenEvent tokenEvent = (JactlTokenBuilder.TokenEvent) event;
+        tokenEvent.tableIndex = table.add(tokenEvent.getToken());
+      }
+    }
+    table.nextSignificant = new int[table.size + 1];
+    table.nextSignificant[table.size] = table.size;
+    for (int i = table.size - 1; i >= 0; i--) {
+      table.nextSignificant[i] = table.isSignificant(i) ? i : table.nextSignificant[i + 1];
+    }
+    return table;
+  }
+
+  private int add(Token token) {
+    int offset = token.getOffset();
+    int type   = token.is(io.jactl.TokenType.EOL, io.jactl.TokenType.WHITESPACE) ? WHITESPACE
+               : token.is(io.jactl.TokenType.ERROR)                             ? BAD_CHARACTER
+                                                                                : token.getType().ordinal();
+    int length;
+    try {
+      length = token.getChars().length();
+    }
+    catch (JactlError error) {
+      type   = BAD_CHARACTER;
+      length = -1;      // Work out once we know where next token starts
+    }
+
+    if (size > 0 && lengths[size - 1] < 0) {
+      lengths[size - 1] = Math.max(offset - offsets[size - 1], 0);
+    }
+    if (size > 0 && type == WHITESPACE && types[size - 1] == WHITESPACE) {
+      // Merge with previous whitespace
+      lengths[size - 1] = offset + length - offsets[size - 1];
+      return size - 1;
+    }
+
+    if (size == offsets.length) {
+      int newCapacity = size * 2;
+      offsets = Arrays.copyOf(offsets, newCapacity);
+      lengths = Arrays.copyOf(lengths, newCapacity);
+      types   = Arrays.copyOf(types, newCapacity);
+    }
+    offsets[size] = offset;
+    lengths[size] = length;
+    types[size]   = type;
+    return size++;
+  }
+
+  public int size()                 { return size; }
+  public int getOffset(int index)   { return offsets[index]; }
+  public int getEnd(int index)      { return offsets[index] + Math.max(lengths[index], 0); }
+  public boolean isEof(int index)   { return types[index] == EOF; }
+
+  public boolean isSignificant(int index) {
+    int type = types[index];
+    return type != WHITESPACE && type != COMMENT;
+  }
+
+  public IElementType getElementType(int index) {
+    int type = types[index];
+    return type == BAD_CHARACTER ? TokenType.BAD_CHARACTER : JactlTokenType.getIElementType(TOKEN_TYPES[type]);
+  }
+
+  /**
+   * Find offset of first significant (not whitespace or comment) token at or after given index
+   * @param index  the index to start from
+   * @return the offset or -1 if there is no such token
+   */
+  public int nextSignificantOffset(int index) {
+    if (index >= size) {
+      return -1;
+    }
+    int next = nextSignificant[index];
+    return next < size ? offsets[next] : -1;
+  }
+
+  /**
+   * Find index of first token whose offset is at or after the given offset
+   * @param offset  the offset
+   * @return the index (or size() if there is no such token)
+   */
+  public int findIndex(int offset) {
+    int low  = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (offsets[mid] < offset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -16,10 +16,6 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.*;
-import java.util.stream.Collectors;
-
-import static io.jactl.TokenType.EOL;
-import static io.jactl.TokenType.WHITESPACE;
 
 public class JactlTokeniser extends Lexer {
 
@@ -27,37 +23,38 @@ public class JactlTokeniser extends Lexer {
 
   IElementType EOF = JactlTokenTypes.EOF;  // Force initialisation of token types
 
-  CharSequence        bufferSequence;
-  Tokeniser           tokeniser;
-  IElementType        current;
-  int                 startOffset;
-  int                 endOffset;
-  JactlTokenBuilder   jactlBuilder;
-  Stmt.ClassDecl      script;
-  JactlContext        jactlContext;
-  ListIterator<Token> tokenIter = null;
-  Token               nextToken = null;
-  int                 tokenStart;
-  int                 tokenEnd;
-  Project             project;
+  CharSequence          bufferSequence;
+  IElementType          current;
+  int                   startOffset;
+  int                   endOffset;
+  JactlParseCache.Entry parsed;
+  JactlTokenTable       tokenTable;
+  int                   tokenIndex;
+  int                   tokenStart;
+  int                   tokenEnd;
+  Project               project;
+  String                fragmentPrefix = "";   // Prefix to parse text with when reparsing blocks/closures
 
   public JactlTokeniser(Project project) {
     this.project = project;
   }
 
+  /**
+   * Create a tokeniser for a fragment of a file (such as a block or closure) that is parsed
+   * as though it had been preceded by the given prefix. Offsets of the tokens returned are
+   * relative to the fragment itself.
+   * @param project         the project
+   * @param fragmentPrefix  the prefix
+   */
+  public JactlTokeniser(Project project, String fragmentPrefix) {
+    this.project        = project;
+    this.fragmentPrefix = fragmentPrefix;
+  }
+
   @Override
   public void start(@NotNull CharSequence charSequence, int startOffset, int endOffset, int initialState) {
     tokenise(charSequence, startOffset, endOffset);
-    nextToken = null;
-    List<JactlTokenBuilder.Event> events = jactlBuilder.getEvents();
-    List<Token>                   tokens = events.stream().filter(JactlTokenBuilder.Event::isToken).map(evt -> ((JactlTokenBuilder.TokenEvent) evt).token).collect(Collectors.toList());
-    for (tokenIter = tokens.listIterator();
-         tokenIter.hasNext(); ) {
-      advance();
-      if (nextToken.getOffset() >= startOffset) {
-        break;
-      }
-    }
+    locate(tokenTable.findIndex(startOffset + fragmentPrefix.length()));
   }
 
   public void tokenise(CharSequence charSequence, int startOffset, int endOffset) {
@@ -65,70 +62,56 @@ public class JactlTokeniser extends Lexer {
     bufferSequence   = charSequence;
     this.startOffset = startOffset;
     this.endOffset   = endOffset;
-    tokeniser        = new Tokeniser(charSequence.toString(), true);
-    jactlBuilder     = new JactlTokenBuilder(tokeniser);
-    jactlContext     = JactlUtils.createJactlContext(project);
+    parsed           = fragmentPrefix.isEmpty() ? JactlParseCache.getEntry(project, charSequence)
+                                                : new JactlParseCache.Entry(project, fragmentPrefix + charSequence);
+    tokenTable       = parsed.tokenTable;
+  }
 
-    // We don't know directory or file name so for the moment use dummy package/class names
-    Parser parser    = new Parser(jactlBuilder, jactlContext, "");
-    script           = parser.parseScriptOrClass("test");
+  /**
+   * Parse the text again, bypassing the cache, to get an AST that is not shared with any
+   * other file.
+   * @return the new parse result
+   */
+  public JactlParseCache.Entry retokenise() {
+    parsed     = new JactlParseCache.Entry(project, fragmentPrefix + bufferSequence);
+    tokenTable = parsed.tokenTable;
+    return parsed;
   }
 
   public CharSequence             getText()         { return bufferSequence; }
-  public Stmt.ClassDecl           getJactl()        { return script; }
-  public JactlContext             getJactlContext() { return jactlContext; }
-  public List<JactlTokenBuilder.Event> getEvents()  { return jactlBuilder.events; }
+  public Stmt.ClassDecl           getJactl()        { return parsed.script; }
+  public JactlContext             getJactlContext() { return parsed.jactlContext; }
+  public List<JactlTokenBuilder.Event> getEvents()  { return parsed.builder.getEvents(); }
+  public JactlParseCache.Entry    getParseEntry()   { return parsed; }
+  public JactlTokenTable          getTokenTable()   { return tokenTable; }
+  public String                   getFragmentPrefix() { return fragmentPrefix; }
   @Override public int            getState()        { return 0; }
   @Override public IElementType   getTokenType()    { return current; }
   @Override public int            getTokenStart()   { return tokenStart; }
   @Override public int            getTokenEnd()     { return tokenEnd; }
 
   @Override public void advance() {
-    try {
-      if (nextToken == null || nextToken.getOffset() < endOffset) {
-        if (!tokenIter.hasNext()) {
-          LOG.error("tokenIter.hasNext() is false: nextToken=" + nextToken + " (at offset " + nextToken.getOffset() + "), endOffset=" + endOffset);
-        }
-        nextToken  = tokenIter.next();
-        current    = JactlTokenType.getIElementType(nextToken.is(EOL,WHITESPACE) ? WHITESPACE : nextToken.getType());
-        tokenStart = nextToken.getOffset();
-        // Merge EOLs and whitespace into one whitespace token since this is what Intellij expects for code formatting purposes
-        if (nextToken.is(EOL,WHITESPACE) && tokenIter.hasNext()) {
-          while (tokenIter.hasNext()) {
-            nextToken = tokenIter.next();
-            if (!nextToken.is(EOL,WHITESPACE)) {
-              tokenIter.previous();
-              tokenIter.previous();
-              nextToken = tokenIter.next();
-              break;
-            }
-          }
-        }
-        tokenEnd = nextToken.getOffset() + nextToken.getChars().length();
-      }
-      if (nextToken.getOffset() >= endOffset) {
-        current = EOF;
-      }
-      if (current == EOF) {
-        current = null;
-      }
-      else if (nextToken.is(io.jactl.TokenType.ERROR)) {
-        current = TokenType.BAD_CHARACTER;
-      }
-    }
-    catch (JactlError error) {
-      current = TokenType.BAD_CHARACTER;
+    locate(tokenIndex + 1);
+  }
+
+  private void locate(int index) {
+    tokenIndex = index;
+    int shift  = fragmentPrefix.length();
+    if (index >= tokenTable.size() || tokenTable.getOffset(index) - shift >= endOffset || tokenTable.isEof(index)) {
+      current = null;
+      return;
     }
+    current    = tokenTable.getElementType(index);
+    tokenStart = tokenTable.getOffset(index) - shift;
+    tokenEnd   = tokenTable.getEnd(index) - shift;
   }
 
   @Override public @NotNull LexerPosition getCurrentPosition() {
-    return new JactlLexerPosition();
+    return new JactlLexerPosition(tokenIndex);
   }
 
   @Override public void restore(@NotNull LexerPosition lexerPosition) {
-    throw new UnsupportedOperationException("restore not supported");
-//    JactlLexerPosition pos = (JactlLexerPosition)lexerPosition;
-//    tokeniser.rewind(pos.saved);
+    locate(((JactlLexerPosition)lexerPosition).index);
   }
 
   @Override public @NotNull CharSequence getBufferSequence() {
@@ -140,12 +123,12 @@ public class JactlTokeniser extends Lexer {
   }
 
   private class JactlLexerPosition implements LexerPosition {
-    int offset;
-    JactlLexerPosition() {
-      offset = tokeniser.peek().getOffset();
+    int index;
+    JactlLexerPosition(int index) {
+      this.index = index;
     }
     @Override public int getOffset() {
-      return offset + startOffset;
+      return index < tokenTable.size() ? tokenTable.getOffset(index) - fragmentPrefix.length() : endOffset;
     }
     @Override public int getState() {
       return 0;
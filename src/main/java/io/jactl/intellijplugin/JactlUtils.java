@@ -19,7 +19,11 @@ package io.jactl.intellijplugin;
 
 import com.intellij.lang.ASTNode;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.PackageIndex;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VfsUtil;
@@ -27,6 +31,7 @@ import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileVisitor;
 import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.IncorrectOperationException;
 import io.jactl.*;
@@ -36,9 +41,11 @@ import io.jactl.intellijplugin.common.JactlPlugin;
 import io.jactl.intellijplugin.extensions.settings.JactlConfiguration;
 import io.jactl.intellijplugin.jpsplugin.builder.GlobalsException;
 import io.jactl.intellijplugin.psi.*;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
 import io.jactl.intellijplugin.psi.impl.JactlPsiTypeImpl;
 import io.jactl.intellijplugin.psi.interfaces.JactlPsiName;
 import io.jactl.intellijplugin.psi.interfaces.JactlPsiType;
+import io.jactl.intellijplugin.psi.stubs.JactlClassIndex;
 import io.jactl.runtime.ClassDescriptor;
 import io.jactl.runtime.RuntimeUtils;
 import org.jetbrains.annotations.NotNull;
@@ -109,10 +116,17 @@ public class JactlUtils {
   }
 
   public static Set<String> pkgNames(Project project) {
-    return getSourceRootFiles(project).stream()
-                                      .map(JactlUtils::pkgNames)
-                                      .flatMap(Collection::stream)
-                                      .collect(Collectors.toSet());
+    return JactlPackageTrie.getInstance(project).getPackageNames();
+  }
+
+  /**
+   * Check whether package exists using the JactlPackageTrie
+   * @param project      the project
+   * @param packageName  the package name ("a.b.c")
+   * @return true if the package exists
+   */
+  public static boolean isPackage(Project project, String packageName) {
+    return JactlPackageTrie.getInstance(project).contains(packageName);
   }
 
   public static String pathToClass(Project project, String path) {
@@ -148,22 +162,18 @@ public class JactlUtils {
     return null;
   }
 
-  public static JactlPsiElement getNameElementForPsiElementInTree(JactlAstKey key) {
-    JactlPsiElement element = getPsiElementInTree(key);
+  public static JactlPsiElement getNameElementForPsiElementInTree(JactlFile file, JactlAstKey key) {
+    JactlPsiElement element = getPsiElementInTree(file, key);
     if (element == null || element instanceof JactlPsiName) {
       return element;
     }
     return (JactlPsiElement)getFirstDescendant(element, JactlPsiName.class);
   }
 
-  private static JactlPsiElement getPsiElementInTree(JactlAstKey key) {
-    if (key == null) {
+  private static JactlPsiElement getPsiElementInTree(JactlFile file, JactlAstKey key) {
+    if (key == null || file == null) {
       return null;       // Just to be safe
     }
-    JactlFile file = key.getFile();
-    if (file == null) {
-      return null;
-    }
     // Find leaf element at location and work our way up until we get to node corresponding to type
     PsiElement leaf = file.findElementAt(key.getOffset());
     PsiElement psi;
@@ -203,7 +213,7 @@ public class JactlUtils {
           initialiser = noop.originalExpr;
         }
         if (initialiser != null) {
-          PsiElement declElement = getPsiElementInTree(initialiser.getUserData(JactlAstKey.class));
+          PsiElement declElement = getPsiElementInTree(jactlPsiElement.getFile(), initialiser.getUserData(JactlAstKey.class));
           sb.append(" = ").append(firstLine(declElement.getText()));
         }
         return sb.toString();
@@ -495,30 +505,46 @@ public class JactlUtils {
     Set<PackageEntry> contents = new HashSet<>();
     processPackage(project, packageName, child -> {
       // Add all subdirs and class files (not script files)
-      if (child.isDirectory() || child.getFileType() == JactlFileType.INSTANCE) {
-        if (!child.isDirectory()) {
-          JactlFile jactlFile = getJactlFile(project, child);
-          if (jactlFile == null || jactlFile.isScriptFile()) {
-            return;
-          }
-        }
-        contents.add(new PackageEntry(child.isDirectory(), JactlPlugin.removeSuffix(child.getName())));
+      if (child.isDirectory()) {
+        contents.add(new PackageEntry(true, child.getName()));
+      }
+      else if (child.getFileType() == JactlFileType.INSTANCE && !isScriptFile(project, child)) {
+        contents.add(new PackageEntry(false, JactlPlugin.removeSuffix(child.getName())));
       }
     });
     return contents;
   }
 
+  /**
+   * Whether file is a script file. Uses the JactlClassNameIndex if possible so that the
+   * file does not need to be parsed.
+   */
+  private static boolean isScriptFile(Project project, VirtualFile file) {
+    Boolean isScript = JactlClassNameIndex.isScript(project, file);
+    if (isScript != null) {
+      return isScript;
+    }
+    JactlFile jactlFile = getJactlFile(project, file);
+    return jactlFile == null || jactlFile.isScriptFile();
+  }
+
   private static void processPackage(Project project, String packageName, Consumer<VirtualFile> processor) {
-    String[] packagePath = packageName == null || packageName.isEmpty() ? new String[0] : packageName.split("\\.");
-    for (VirtualFile root: getSourceRootFiles(project)) {
-      VirtualFile baseFile = VfsUtil.findRelativeFile(root, packagePath);
-      if (baseFile == null) {
-        continue;
-      }
-      Arrays.stream(baseFile.getChildren()).forEach(processor);
+    for (VirtualFile dir: getPackageDirs(project, packageName == null ? "" : packageName)) {
+      Arrays.stream(dir.getChildren()).forEach(processor);
     }
   }
 
+  /**
+   * Get the directories in the project source roots for the given package. We use the
+   * PackageIndex for this rather than looking for the package path under each source root.
+   */
+  static List<VirtualFile> getPackageDirs(Project project, String packageName) {
+    ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+    return Arrays.stream(PackageIndex.getInstance(project).getDirectoriesByPackageName(packageName, false))
+                 .filter(fileIndex::isInSourceContent)
+                 .collect(Collectors.toList());
+  }
+
   public static List<ClassDescriptor> packageClasses(Project project, String packageName) {
     if (packageName == null || packageName.isEmpty()) {
       // No automatic import of classes if we are at root level (i.e. no package)
@@ -526,12 +552,10 @@ public class JactlUtils {
     }
     List<ClassDescriptor> contents = new ArrayList<>();
     processPackage(project, packageName, child -> {
-      if (!child.isDirectory() && child.getFileType() == JactlFileType.INSTANCE) {
-        String         className = JactlPlugin.removeSuffix(child.getName());
-        JactlFile      file      = getJactlFile(project, child);
-        Stmt.ClassDecl classDecl = JactlParserAdapter.getClassDecl(file, file.getText(), className);
-        if (classDecl != null && !classDecl.isScriptClass()) {
-          contents.add(classDecl.classDescriptor);
+      if (!child.isDirectory() && child.getFileType() == JactlFileType.INSTANCE && !Boolean.TRUE.equals(JactlClassNameIndex.isScript(project, child))) {
+        ClassDescriptor descriptor = lookup(project, packageName, JactlPlugin.removeSuffix(child.getName()));
+        if (descriptor != null && !descriptor.isScriptClass()) {
+          contents.add(descriptor);
         }
       }
     });
@@ -548,13 +572,7 @@ public class JactlUtils {
 
   public static JactlFile findFileForClass(Project project, String fqClassName) {
     String pkgName   = JactlPlugin.stripFromLast(fqClassName, '.');
-    String className = JactlPlugin.stripSeparatedPrefix(fqClassName, pkgName, ".");
-
-    // First strip prefix if we have script class
-    className = JactlPlugin.stripSeparatedPrefix(className, JactlPlugin.SCRIPT_PREFIX, null);
-
-    // Remove inner classes (X$Y$Z -> X)
-    className = JactlPlugin.stripFromFirst(className, '$');
+    String className = fileNameForClass(JactlPlugin.stripSeparatedPrefix(fqClassName, pkgName, "."));
 
     String      filePath = pkgName.replace('.', File.separatorChar) + File.separatorChar + className + JactlPlugin.DOT_SUFFIX;
     VirtualFile file     = findVirtualFile(project, filePath);
@@ -564,6 +582,56 @@ public class JactlUtils {
     return null;
   }
 
+  /**
+   * Get the name (without suffix) of the file that declares the given class
+   * @param className  the class name without package (X$Y$Z or Jactl$$X$Y)
+   * @return the file name (X)
+   */
+  private static String fileNameForClass(String className) {
+    // First strip prefix if we have script class
+    className = JactlPlugin.stripSeparatedPrefix(className, JactlPlugin.SCRIPT_PREFIX, null);
+
+    // Remove inner classes (X$Y$Z -> X)
+    return JactlPlugin.stripFromFirst(className, '$');
+  }
+
+  /**
+   * Find the class declaration for the given class from the stub index so that we don't
+   * need to parse and resolve the file that it is in
+   * @param project      the project
+   * @param fqClassName  the fully qualified class name (a.b.c.X$Y$Z)
+   * @return the class declaration or null if not found (or if indexes not available)
+   */
+  public static JactlPsiClassDeclImpl findClassDeclaration(Project project, String fqClassName) {
+    if (DumbService.isDumb(project)) {
+      return null;
+    }
+    JactlFile file = findFileForClass(project, fqClassName);
+    if (file == null || file.getVirtualFile() == null) {
+      return null;
+    }
+    String classPath = classPathInFile(JactlPlugin.removePackage(fqClassName));
+    if (classPath == null) {
+      return null;
+    }
+    return JactlClassIndex.find(project, classPath, GlobalSearchScope.fileScope(file)).stream().findFirst().orElse(null);
+  }
+
+  /**
+   * Get the path of the class within its file as used by the JactlClassIndex and
+   * JactlClassNameIndex. Classes within a script are inner classes of the script
+   * class so "Jactl$$X$Y" becomes "Y".
+   * @param className  the class name without package (X$Y$Z)
+   * @return the class path within the file or null for the script class itself
+   */
+  public static String classPathInFile(String className) {
+    if (className.startsWith(JactlPlugin.SCRIPT_PREFIX)) {
+      int idx = className.indexOf('$', JactlPlugin.SCRIPT_PREFIX.length());
+      return idx == -1 ? null : className.substring(idx + 1);
+    }
+    return className;
+  }
+
   public static JactlFile findFile(Project project, String filePath) {
     VirtualFile file = findVirtualFile(project, filePath);
     if (file != null) {
@@ -573,8 +641,10 @@ public class JactlUtils {
   }
 
   public static VirtualFile findVirtualFile(Project project, String fileName) {
-    for (VirtualFile root: getSourceRootFiles(project)) {
-      VirtualFile file = VfsUtil.findRelativeFile(root, fileName.split(File.separator));
+    String parentPath  = JactlPlugin.stripFromLast(fileName, File.separatorChar);
+    String name        = JactlPlugin.stripSeparatedPrefix(fileName, parentPath, File.separator);
+    for (VirtualFile dir: getPackageDirs(project, parentPath.replace(File.separatorChar, '.'))) {
+      VirtualFile file = dir.findChild(name);
       if (file != null) {
         return file;
       }
@@ -789,10 +859,7 @@ public class JactlUtils {
                        .javaPackage(baseJavaPkg)
                        .evaluateConstExprs(false)
                        .idePlugin(true)
-                       .packageChecker(pkgName -> {
-                         Set<String> pkgs = JactlUtils.pkgNames(project);
-                         return pkgs.contains(pkgName);
-                       })
+                       .packageChecker(pkgName -> isPackage(project, pkgName))
                        .classLookup(name -> lookup(name, baseJavaPkgFile, project))
                        .build();
   }
@@ -812,62 +879,112 @@ public class JactlUtils {
       LOG.warn("Class lookup name does not start with expected java package name (name=" + name + ")");
     }
 
-    JactlFile file = JactlUtils.findFileForClassPath(project, name);
-    if (file == null) {
-      return null;
-    }
+    int idx = name.lastIndexOf('/');
+    return lookup(project, idx == -1 ? "" : name.substring(0, idx).replace('/', '.'), name.substring(idx + 1));
+  }
 
-    // Strip package name
-    String className = name.substring(name.lastIndexOf('/') + 1);
-    Stmt.ClassDecl classDecl = JactlParserAdapter.getClassDecl(file, file.getText(), className);
-    if (classDecl == null) {
+  /**
+   * Get ClassDescriptor for given class. We use the JactlClassNameIndex (if available) to
+   * find the file that declares the class so that we never need to parse a file that
+   * doesn't declare it.
+   * @param project      the project
+   * @param packageName  the package name (a.b.c)
+   * @param className    the class name without package (A$B$C)
+   * @return the ClassDescriptor or null
+   */
+  private static ClassDescriptor lookup(Project project, String packageName, String className) {
+    String            fqClassName = packageName.isEmpty() ? className : packageName + "." + className;
+    String            classPath   = classPathInFile(className);
+    List<VirtualFile> files       = classPath == null ? null : JactlClassNameIndex.findFiles(project, packageName, classPath);
+    JactlFile         file;
+    if (files == null) {
+      file = findFileForClass(project, fqClassName);
+    }
+    else {
+      String      fileName    = fileNameForClass(className);
+      VirtualFile virtualFile = files.stream().filter(f -> JactlPlugin.removeSuffix(f.getName()).equals(fileName)).findFirst().orElse(null);
+      file = virtualFile == null ? null : getJactlFile(project, virtualFile);
+    }
+    if (file == null) {
+      // So that we are resolved again if the class turns up
+      JactlClassCache.getInstance(project).recordMissing(fqClassName);
       return null;
     }
-    return classDecl.classDescriptor;
+    return JactlClassCache.getInstance(project).getClassDescriptor(file, className);
   }
 
   public static VirtualFile getGlobalsFile(Project project) {
+    String fileName = getGlobalsPath(project);
+    return fileName == null ? null : VfsUtil.findFile(Path.of(fileName), true);
+  }
+
+  /**
+   * Get the (system independent) path of the configured globals script without looking
+   * it up in the VFS
+   * @param project  the project
+   * @return the path or null if no globals script configured
+   */
+  public static String getGlobalsPath(Project project) {
     String scriptPath = JactlConfiguration.getInstance(project).getGlobalVariablesScript();
     if (scriptPath != null) {
       String fileName = FileUtil.toSystemIndependentName(scriptPath.trim());
       if (!fileName.isEmpty()) {
-        return VfsUtil.findFile(Path.of(fileName), true);
+        return fileName;
       }
     }
     return null;
   }
 
+  /**
+   * Get the global variables by evaluating the globals script (if configured). The result
+   * is cached until the globals script changes (see JactlGlobalsCache).
+   * @param project  the project
+   * @return the globals
+   * @throws GlobalsException if the globals script could not be evaluated
+   */
   public static Map<String,Object> getGlobals(Project project) {
-    Map<String,Object> globals     = Collections.EMPTY_MAP;
-    VirtualFile        globalsFile = getGlobalsFile(project);
-    if (globalsFile != null) {
-      String scriptPath = JactlConfiguration.getInstance(project).getGlobalVariablesScript();
-      String fileName = FileUtil.toSystemIndependentName(scriptPath.trim());
-      PsiFile file = PsiManager.getInstance(project).findFile(globalsFile);
-      if (file == null) {
-        throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.no.global.variables.script", fileName));
-      }
-      if (file.isDirectory()) {
-        throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.global.variables.script.is.directory", fileName));
-      }
+    VirtualFile globalsFile = getGlobalsFile(project);
+    if (globalsFile == null) {
+      return Collections.EMPTY_MAP;
+    }
+    String  fileName = FileUtil.toSystemIndependentName(JactlConfiguration.getInstance(project).getGlobalVariablesScript().trim());
+    PsiFile file     = PsiManager.getInstance(project).findFile(globalsFile);
+    if (file == null) {
+      throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.no.global.variables.script", fileName));
+    }
+    if (file.isDirectory()) {
+      throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.global.variables.script.is.directory", fileName));
+    }
+    return JactlGlobalsCache.getInstance(project).getGlobals(fileName, file);
+  }
 
-      try {
-        String scriptContents = file.getText();
-        Object globalsObj    = Jactl.eval(scriptContents, Collections.EMPTY_MAP);
-        if (globalsObj != null && !(globalsObj instanceof Map)) {
-          throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.global.variables.script.bad.type", RuntimeUtils.className(globalsObj)));
-        }
-        globals = (Map<String,Object>)globalsObj;
-      }
-      catch (CompileError e) {
-        // Only show first error when error compiling globals script
-        throw new GlobalsException(fileName, e.getErrors().get(0).getSingleLineMessage());
-      }
-      catch (Throwable e) {
-        throw new GlobalsException(fileName, e.toString());
+  /**
+   * Evaluate the globals script
+   * @param fileName  the globals script path (for error messages)
+   * @param file      the globals script file
+   * @return the globals
+   * @throws GlobalsException if the globals script could not be evaluated
+   */
+  static Map<String,Object> evaluateGlobals(String fileName, PsiFile file) {
+    try {
+      String scriptContents = file.getText();
+      Object globalsObj    = Jactl.eval(scriptContents, Collections.EMPTY_MAP);
+      if (globalsObj != null && !(globalsObj instanceof Map)) {
+        throw new GlobalsException(fileName, JactlBundle.message("script.runner.error.global.variables.script.bad.type", RuntimeUtils.className(globalsObj)));
       }
+      return (Map<String,Object>)globalsObj;
+    }
+    catch (CompileError e) {
+      // Only show first error when error compiling globals script
+      throw new GlobalsException(fileName, e.getErrors().get(0).getSingleLineMessage());
+    }
+    catch (ProcessCanceledException e) {
+      // Don't want cancellation remembered as an error in the globals script
+      throw e;
+    }
+    catch (Throwable e) {
+      throw new GlobalsException(fileName, e.toString());
     }
-    return globals;
   }
 
   /**
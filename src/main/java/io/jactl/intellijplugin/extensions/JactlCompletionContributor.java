@@ -31,6 +31,7 @@ import io.jactl.*;
 import io.jactl.intellijplugin.*;
 import io.jactl.intellijplugin.common.JactlPlugin;
 import io.jactl.intellijplugin.psi.*;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
 import io.jactl.intellijplugin.psi.impl.JactlPsiIdentifierExprImpl;
 import io.jactl.intellijplugin.psi.impl.JactlPsiTypeImpl;
 import io.jactl.intellijplugin.psi.interfaces.JactlPsiExpr;
@@ -180,7 +181,7 @@ public class JactlCompletionContributor extends CompletionContributor {
                  pathBuilder.append(child.getText());
                }
                String path = JactlPlugin.removeSuffix(pathBuilder.toString());
-               if (JactlUtils.pkgNames(element.getProject()).contains(path)) {
+               if (JactlUtils.isPackage(element.getProject(), path)) {
                  // Package name so complete with all sub packages and classes in this package
                  result.addAllElements(JactlUtils.packageContents(element.getProject(), path)
                                                  .stream()
@@ -304,7 +305,7 @@ public class JactlCompletionContributor extends CompletionContributor {
                JactlPsiElement classPathElement = (JactlPsiElement) JactlUtils.getFirstChild(importStmt, JactlExprElementType.CLASS_PATH_EXPR);
                if (classPathElement == null) {
                  String packageName = String.join(".'", path);
-                 if (JactlUtils.pkgNames(element.getProject()).contains(packageName)) {
+                 if (JactlUtils.isPackage(element.getProject(), packageName)) {
                    // Package name so complete with all sub packages and classes in this package
                    result.addAllElements(JactlUtils.packageContents(element.getProject(), packageName)
                                                    .stream()
@@ -315,6 +316,22 @@ public class JactlCompletionContributor extends CompletionContributor {
                else {
                  Expr.ClassPath astNode     = (Expr.ClassPath)classPathElement.getJactlAstNode();
                  String         parentClass = astNode.fullClassName();
+                 boolean        isStatic    = JactlUtils.getFirstChild(importStmt, JactlTokenTypes.STATIC) != null;
+                 // Use stub index if possible for inner classes so that we don't need to resolve the file
+                 JactlPsiClassDeclImpl classDeclaration = isStatic ? null : JactlUtils.findClassDeclaration(element.getProject(), parentClass);
+                 if (classDeclaration != null) {
+                   for (String next: path) {
+                     classDeclaration = classDeclaration.findInnerClass(next);
+                     if (classDeclaration == null) {
+                       return;
+                     }
+                   }
+                   result.addAllElements(classDeclaration.getInnerClasses()
+                                                         .stream()
+                                                         .map(inner -> createLookup(inner.getClassName(), parentClass))
+                                                         .collect(Collectors.toList()));
+                   return;
+                 }
                  Stmt.ClassDecl classDecl = JactlParserAdapter.getClassDecl(element.getProject(), parentClass);
                  // Find the inner class we are at based on current path
                  for (String next: path) {
@@ -327,7 +344,7 @@ public class JactlCompletionContributor extends CompletionContributor {
                    result.addAllElements(classDecl.innerClasses.stream()
                                                                .map(inner -> createLookup(inner.name.getStringValue(), parentClass))
                                                                .collect(Collectors.toList()));
-                   if (JactlUtils.getFirstChild(importStmt, JactlTokenTypes.STATIC) != null) {
+                   if (isStatic) {
                      result.addAllElements(classDecl.methods.stream()
                                                             .map(funDecl -> funDecl.declExpr)
                                                             .filter(Expr.FunDecl::isStatic)
@@ -353,7 +370,7 @@ public class JactlCompletionContributor extends CompletionContributor {
                JactlPsiElement element = (JactlPsiElement)parameters.getPosition();
                // Build package path for preceding nodes
                String packageName = JactlUtils.parentPackage(element, ".");
-               if (packageName.isEmpty() || JactlUtils.pkgNames(element.getProject()).contains(packageName)) {
+               if (packageName.isEmpty() || JactlUtils.isPackage(element.getProject(), packageName)) {
                  // Package name so complete with all sub packages in this package
                  result.addAllElements(JactlUtils.packageContents(element.getProject(), packageName)
                                                  .stream()
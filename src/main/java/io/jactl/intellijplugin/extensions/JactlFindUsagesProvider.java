@@ -17,12 +17,9 @@
 
 package io.jactl.intellijplugin.extensions;
 
-import com.intellij.lang.cacheBuilder.DefaultWordsScanner;
 import com.intellij.lang.cacheBuilder.WordsScanner;
 import com.intellij.lang.findUsages.FindUsagesProvider;
 import com.intellij.psi.PsiElement;
-import io.jactl.intellijplugin.JactlTokenSets;
-import io.jactl.intellijplugin.JactlTokeniser;
 import io.jactl.intellijplugin.JactlUtils;
 import io.jactl.intellijplugin.psi.interfaces.JactlPsiName;
 import org.jetbrains.annotations.Nls;
@@ -34,7 +31,7 @@ public class JactlFindUsagesProvider implements FindUsagesProvider {
 
   @Override
   public @Nullable WordsScanner getWordsScanner() {
-    return new DefaultWordsScanner(new JactlTokeniser(null), JactlTokenSets.IDENTIFIERS, JactlTokenSets.COMMENT, JactlTokenSets.STRING_LITERALS);
+    return new JactlWordsScanner();
   }
 
   @Override
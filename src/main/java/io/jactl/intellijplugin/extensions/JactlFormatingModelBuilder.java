@@ -110,7 +110,7 @@ public class JactlFormatingModelBuilder implements FormattingModelBuilder {
     else if (child.getElementType() == JactlStmtElementType.BLOCK && JactlUtils.isElementType(child.getTreeNext(), LEFT_BRACE)) {
       return new JactlCodeBlock(parentBlock, child, Wrap.createWrap(WrapType.NONE, false), alignment, spacingBuilder, false);
     }
-    else if (child.getElementType() instanceof JactlStmtElementType || isList(child) || child.getElementType() == JactlNameElementType.PACKAGE) {
+    else if (JactlStmtElementType.isStmt(child.getElementType()) || isList(child) || child.getElementType() == JactlNameElementType.PACKAGE) {
       return new JactlStmtBlock(parentBlock, child, node.getElementType() == JactlParserDefinition.JACTL_FILE_ELEMENT_TYPE, spacingBuilder, alignment);
     }
     else if (isBinaryOrMethodCallExpr(child)) {
@@ -119,7 +119,7 @@ public class JactlFormatingModelBuilder implements FormattingModelBuilder {
     else if (JactlUtils.isElementType(child, TERNARY_EXPR)) {
       return new JactlTernaryExpr(parentBlock, child, spacingBuilder, alignment);
     }
-    else if (child.getElementType() instanceof JactlExprElementType) {
+    else if (JactlExprElementType.isExpr(child.getElementType())) {
       // Don't align closures even when passed as args to calls
       return new JactlBlock(parentBlock, child, spacingBuilder, JactlUtils.isElementType(child, JactlExprElementType.CLOSURE) ? null : alignment);
     }
@@ -44,7 +44,7 @@ public class JactlHighlightAnnotator implements Annotator {
 
     JactlPsiElement ancestor = (JactlPsiElement)JactlUtils.getAncestor(element, JactlPsiElement.class);
     if (ancestor != null) {
-      JactlParserAdapter.getErrors(ancestor.getFile(), ancestor.getSourceCode(), element.getNode())
+      JactlParserAdapter.getErrors(ancestor.getFile(), element.getNode())
                         .forEach(error);
     }
 
@@ -60,8 +60,7 @@ public class JactlHighlightAnnotator implements Annotator {
       }
       idents.add(element.getText());
       String packageName = String.join(".", idents);
-      Set<String> pkgNames = JactlUtils.pkgNames(element.getProject());
-      if (!pkgNames.contains(packageName)) {
+      if (!JactlUtils.isPackage(element.getProject(), packageName)) {
         error.accept("Unknown package");
         return;
       }
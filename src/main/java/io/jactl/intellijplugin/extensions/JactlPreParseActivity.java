@@ -0,0 +1,256 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.extensions;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import io.jactl.intellijplugin.JactlClassCache;
+import io.jactl.intellijplugin.JactlClassNameIndex;
+import io.jactl.intellijplugin.JactlFile;
+import io.jactl.intellijplugin.JactlFileType;
+import io.jactl.intellijplugin.JactlHighlightingLexer;
+import io.jactl.intellijplugin.common.JactlBundle;
+import io.jactl.intellijplugin.psi.JactlTokenTypes;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Once indexing has finished after a project is opened we parse and resolve all of the
+ * Jactl class files in the background so that the ClassDescriptors are already in the
+ * JactlClassCache by the time the first completion/highlighting needs them. Scripts can't
+ * be referred to from other files so we use JactlClassNameIndex to skip them without
+ * having to build their PSI.
+ * <p>Files are processed concurrently on a bounded pool using non-blocking read actions
+ * so that we never hold up write actions (a read action interrupted by a write action is
+ * just restarted). Resolving a class that refers to classes in other files will look up
+ * (and therefore resolve) those files first via the JactlClassCache. To make it less likely
+ * that two threads need the same file at the same time we submit the files in dependency
+ * order (see dependencyOrder()).</p>
+ */
+public class JactlPreParseActivity implements StartupActivity.DumbAware {
+
+  private static final Logger LOG = Logger.getInstance(JactlPreParseActivity.class);
+
+  @Override
+  public void runActivity(@NotNull Project project) {
+    DumbService.getInstance(project).runWhenSmart(() -> {
+      if (!project.isDisposed()) {
+        ProgressManager.getInstance().run(new PreParseTask(project));
+      }
+    });
+  }
+
+  private static class PreParseTask extends Task.Backgroundable {
+    PreParseTask(Project project) {
+      super(project, JactlBundle.message("jactl.preparse.task.title"), true);
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+      Project           project = getProject();
+      List<VirtualFile> files   = ReadAction.nonBlocking(() -> dependencyOrder(classFiles(project)))
+                                            .inSmartMode(project)
+                                            .expireWith(project)
+                                            .wrapProgress(indicator)
+                                            .executeSynchronously();
+      if (files.isEmpty()) {
+        return;
+      }
+
+      indicator.setIndeterminate(false);
+      int             parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+      ExecutorService executor    = AppExecutorUtil.createBoundedApplicationPoolExecutor("Jactl Pre-parse", parallelism);
+      AtomicInteger   done        = new AtomicInteger();
+      List<Future<?>> futures     = new ArrayList<>(files.size());
+      try {
+        for (VirtualFile file: files) {
+          futures.add(executor.submit(() -> {
+            indicator.checkCanceled();
+            indicator.setText2(file.getPresentableUrl());
+            try {
+              ReadAction.nonBlocking(() -> preParse(project, file))
+                        .inSmartMode(project)
+                        .expireWith(project)
+                        .wrapProgress(indicator)
+                        .executeSynchronously();
+            }
+            catch (ProcessCanceledException e) {
+              // Also thrown if another thread is resolving a file that this one needs at the same
+              // time (see ParsedScript.ensureResolved()) in which case the file is resolved on first use
+              indicator.checkCanceled();
+            }
+            catch (Exception e) {
+              // Errors will be reported when the file is opened so just log them here
+              LOG.debug("Error pre-parsing " + file.getPath(), e);
+            }
+            indicator.setFraction((double) done.incrementAndGet() / files.size());
+          }));
+        }
+        for (Future<?> future: futures) {
+          waitFor(future, indicator);
+        }
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }
+
+    private static void waitFor(Future<?> future, ProgressIndicator indicator) {
+      while (true) {
+        indicator.checkCanceled();
+        try {
+          future.get(100, TimeUnit.MILLISECONDS);
+          return;
+        }
+        catch (TimeoutException ignored) {
+        }
+        catch (InterruptedException e) {
+          throw new ProcessCanceledException(e);
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof ProcessCanceledException) {
+            throw (ProcessCanceledException) e.getCause();
+          }
+          LOG.debug("Error pre-parsing Jactl files", e.getCause());
+          return;
+        }
+      }
+    }
+
+    /**
+     * Get the Jactl files in the project that are class files according to JactlClassNameIndex
+     */
+    private static List<VirtualFile> classFiles(Project project) {
+      return FileTypeIndex.getFiles(JactlFileType.INSTANCE, GlobalSearchScope.projectScope(project))
+                          .stream()
+                          .filter(file -> Boolean.FALSE.equals(JactlClassNameIndex.isScript(project, file)))
+                          .collect(Collectors.toList());
+    }
+
+    /**
+     * Order the class files so that, as far as we can tell without parsing them, each file
+     * comes after the files for the classes that it refers to. The class in a class file has
+     * the same name as the file so we look for identifiers in each file that match the name
+     * of one of the other files. This can find references that aren't really there (a
+     * variable or a class in another package with the same name) which only affects the
+     * order. Cycles are broken arbitrarily.
+     */
+    private static List<VirtualFile> dependencyOrder(List<VirtualFile> files) {
+      Map<String,List<VirtualFile>> filesByName = new HashMap<>();
+      files.forEach(file -> filesByName.computeIfAbsent(file.getNameWithoutExtension(), k -> new ArrayList<>()).add(file));
+
+      Map<VirtualFile,Set<VirtualFile>> dependencies = new HashMap<>();
+      for (VirtualFile file: files) {
+        ProgressManager.checkCanceled();
+        Set<VirtualFile> fileDeps = new LinkedHashSet<>();
+        for (String name: referencedNames(file, filesByName.keySet())) {
+          filesByName.get(name).stream().filter(f -> !f.equals(file)).forEach(fileDeps::add);
+        }
+        dependencies.put(file, fileDeps);
+      }
+
+      // Depth first post-order so that dependencies come first
+      List<VirtualFile>            ordered   = new ArrayList<>(files.size());
+      Set<VirtualFile>             visited   = new HashSet<>();
+      Deque<VirtualFile>           stack     = new ArrayDeque<>();
+      Deque<Iterator<VirtualFile>> iterators = new ArrayDeque<>();
+      for (VirtualFile file: files) {
+        if (!visited.add(file)) {
+          continue;
+        }
+        stack.push(file);
+        iterators.push(dependencies.get(file).iterator());
+        while (!stack.isEmpty()) {
+          Iterator<VirtualFile> it = iterators.peek();
+          if (it.hasNext()) {
+            VirtualFile dependency = it.next();
+            if (visited.add(dependency)) {
+              stack.push(dependency);
+              iterators.push(dependencies.get(dependency).iterator());
+            }
+          }
+          else {
+            ordered.add(stack.pop());
+            iterators.pop();
+          }
+        }
+      }
+      return ordered;
+    }
+
+    /**
+     * Get the identifiers in the file that are one of the given names
+     */
+    private static Set<String> referencedNames(VirtualFile file, Set<String> names) {
+      Set<String>  found = new HashSet<>();
+      CharSequence text;
+      try {
+        text = LoadTextUtil.loadText(file);
+      }
+      catch (RuntimeException e) {
+        return found;
+      }
+      JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+      lexer.start(text, 0, text.length(), 0);
+      for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+        if (type == JactlTokenTypes.IDENTIFIER) {
+          String name = lexer.getTokenText();
+          if (names.contains(name)) {
+            found.add(name);
+          }
+        }
+      }
+      return found;
+    }
+
+    private static Void preParse(Project project, VirtualFile virtualFile) {
+      if (project.isDisposed() || !virtualFile.isValid()) {
+        return null;
+      }
+      PsiFile psiFile = PsiManager.getInstance(project).findFile(virtualFile);
+      if (psiFile instanceof JactlFile) {
+        JactlFile file = (JactlFile) psiFile;
+        JactlClassCache.getInstance(project).getClassDescriptor(file, file.getFileNameNoSuffix());
+      }
+      return null;
+    }
+  }
+}
@@ -27,7 +27,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.TokenType;
 import com.intellij.psi.tree.IElementType;
 import io.jactl.Tokeniser;
-import io.jactl.intellijplugin.JactlTokeniser;
+import io.jactl.intellijplugin.JactlHighlightingLexer;
 import io.jactl.intellijplugin.psi.JactlTokenType;
 import org.jetbrains.annotations.NotNull;
 
@@ -84,7 +84,7 @@ public class JactlSyntaxHighLighter extends SyntaxHighlighterBase {
   @NotNull
   @Override
   public Lexer getHighlightingLexer() {
-    return new JactlTokeniser(project);
+    return new JactlHighlightingLexer();
   }
 
   @Override
@@ -98,6 +98,8 @@ public class JactlSyntaxHighLighter extends SyntaxHighlighterBase {
         case STRING_CONST:      return STRING_KEYS;
         case EXPR_STRING_START: return STRING_KEYS;
         case EXPR_STRING_END:   return STRING_KEYS;
+        case REGEX_SUBST_START: return STRING_KEYS;
+        case REGEX_REPLACE:     return STRING_KEYS;
         case SEMICOLON:         return SEMICOLON_KEYS;
         case COMMA:             return COMMA_KEYS;
         case DOT:               return DOT_KEYS;
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.extensions;
+
+import com.intellij.lang.cacheBuilder.VersionedWordsScanner;
+import com.intellij.lang.cacheBuilder.WordOccurrence;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.Processor;
+import io.jactl.intellijplugin.JactlHighlightingLexer;
+import io.jactl.intellijplugin.psi.JactlTokenTypes;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Words scanner used when indexing files for find usages and text search.
+ * <p>Runs JactlHighlightingLexer over the file contents rather than JactlTokeniser
+ * so that indexing a file does not require a JactlContext or a full parse. A single
+ * WordOccurrence is reused for all words reported.</p>
+ */
+public class JactlWordsScanner extends VersionedWordsScanner {
+
+  @Override
+  public void processWords(@NotNull CharSequence fileText, @NotNull Processor<? super WordOccurrence> processor) {
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(fileText, 0, fileText.length(), 0);
+    WordOccurrence occurrence = new WordOccurrence(fileText, 0, 0, null);
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      int start = lexer.getTokenStart();
+      int end   = lexer.getTokenEnd();
+      if (type == JactlTokenTypes.IDENTIFIER) {
+        occurrence.init(fileText, start, end, WordOccurrence.Kind.CODE);
+        if (!processor.process(occurrence)) {
+          return;
+        }
+      }
+      else if (type == JactlTokenTypes.DOLLAR_IDENTIFIER) {
+        // Report $x within a string as a usage of x
+        occurrence.init(fileText, start + 1, end, WordOccurrence.Kind.CODE);
+        if (!processor.process(occurrence)) {
+          return;
+        }
+      }
+      else if (type == JactlTokenTypes.COMMENT) {
+        if (!processWordsInRange(fileText, start, end, WordOccurrence.Kind.COMMENTS, occurrence, processor)) {
+          return;
+        }
+      }
+      else if (isStringPart(type)) {
+        if (!processWordsInRange(fileText, start, end, WordOccurrence.Kind.LITERALS, occurrence, processor)) {
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getVersion() {
+    return 1;
+  }
+
+  private static boolean isStringPart(IElementType type) {
+    return type == JactlTokenTypes.STRING_CONST      ||
+           type == JactlTokenTypes.EXPR_STRING_START ||
+           type == JactlTokenTypes.EXPR_STRING_END   ||
+           type == JactlTokenTypes.REGEX_SUBST_START ||
+           type == JactlTokenTypes.REGEX_REPLACE;
+  }
+
+  private static boolean processWordsInRange(CharSequence text, int start, int end, WordOccurrence.Kind kind, WordOccurrence occurrence, Processor<? super WordOccurrence> processor) {
+    int offset = start;
+    while (offset < end) {
+      while (offset < end && !Character.isJavaIdentifierStart(text.charAt(offset))) {
+        offset++;
+      }
+      int wordStart = offset;
+      while (offset < end && Character.isJavaIdentifierPart(text.charAt(offset))) {
+        offset++;
+      }
+      if (offset > wordStart) {
+        occurrence.init(text, wordStart, offset, kind);
+        if (!processor.process(occurrence)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -18,13 +18,18 @@
 package io.jactl.intellijplugin.extensions.compiler;
 
 import com.intellij.compiler.impl.BuildTargetScopeProvider;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.compiler.CompileScope;
 import com.intellij.openapi.fileTypes.FileTypeRegistry;
 import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScopesCore;
 import io.jactl.Utils;
 import io.jactl.intellijplugin.JactlFileType;
 import io.jactl.intellijplugin.jpsplugin.builder.JactlBuildTarget;
@@ -58,9 +63,27 @@ public class JactlTargetScopeProvider extends BuildTargetScopeProvider {
                  .collect(Collectors.toList());
   }
 
+  /**
+   * Check whether module has any Jactl files under its source roots of the given type.
+   * If indexes are available we ask the file type index (which only has to check the Jactl
+   * files in the project) rather than walking every file under the source roots.
+   */
   private boolean containsJactlResource(Module module, JpsModuleSourceRootType<?> rootType) {
     ModuleRootManager moduleManager = ModuleRootManager.getInstance(module);
     List<VirtualFile> roots         = moduleManager.getSourceRoots(rootType);
+    if (roots.isEmpty()) {
+      return false;
+    }
+    Project project = module.getProject();
+    if (!DumbService.isDumb(project)) {
+      try {
+        return ReadAction.compute(() -> FileTypeIndex.containsFileOfType(JactlFileType.INSTANCE,
+                                                                         GlobalSearchScopesCore.directoriesScope(project, true, roots.toArray(VirtualFile.EMPTY_ARRAY))));
+      }
+      catch (IndexNotReadyException e) {
+        // Dumb mode started in the meantime so fall back to walking the roots
+      }
+    }
     return roots.stream().anyMatch(root -> containsJactlFile(module, root));
   }
 
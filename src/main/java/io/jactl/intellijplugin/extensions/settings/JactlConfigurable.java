@@ -25,6 +25,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import com.intellij.openapi.util.NlsContexts;
 import com.intellij.openapi.util.io.FileUtil;
+import io.jactl.intellijplugin.JactlGlobalsCache;
 import io.jactl.intellijplugin.common.JactlBundle;
 import io.jactl.intellijplugin.common.JactlPlugin;
 import io.jactl.intellijplugin.jpsplugin.builder.GlobalsException;
@@ -35,11 +36,13 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 
 public class JactlConfigurable implements SearchableConfigurable, Configurable.NoScroll {
-  private JactlConfigurationPanel panel;
-  private JactlConfiguration      settings;
+  private final Project                 project;
+  private       JactlConfigurationPanel panel;
+  private       JactlConfiguration      settings;
 
   public JactlConfigurable(Project project) {
-    settings = JactlConfiguration.getInstance(project);
+    this.project = project;
+    settings     = JactlConfiguration.getInstance(project);
   }
 
   @Override
@@ -66,6 +69,7 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
   @Override
   public void apply() throws ConfigurationException {
     panel.apply(settings);
+    JactlGlobalsCache.getInstance(project).globalsScriptChanged();
   }
 
   @Override
@@ -75,6 +79,7 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
 
   public static class JactlConfigurationPanel {
     private TextFieldWithBrowseButton globalVariablesScript;
+    private JSpinner                  buildParallelism;
     private JPanel     mainPanel;
 
     private void apply(JactlConfiguration settings) throws ConfigurationException {
@@ -88,6 +93,7 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
         }
       }
       settings.setGlobalVariablesScript(fileName);
+      settings.setBuildParallelism((Integer) buildParallelism.getValue());
     }
 
     private void reset(JactlConfiguration settings) {
@@ -95,6 +101,7 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
       if (scriptPath != null) {
         globalVariablesScript.setText(FileUtil.toSystemDependentName(scriptPath));
       }
+      buildParallelism.setValue(settings.getBuildParallelism());
     }
 
     private boolean isModified(JactlConfiguration settings) {
@@ -103,7 +110,8 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
         settingsGlobalScriptPath = FileUtil.toSystemIndependentName(settingsGlobalScriptPath.trim());
       }
       String panelGlobalScriptPath = FileUtil.toSystemIndependentName(globalVariablesScript.getText().trim());
-      return !panelGlobalScriptPath.equals(settingsGlobalScriptPath);
+      return !panelGlobalScriptPath.equals(settingsGlobalScriptPath) ||
+             (Integer) buildParallelism.getValue() != settings.getBuildParallelism();
     }
 
     private void createUIComponents() {
@@ -112,6 +120,8 @@ public class JactlConfigurable implements SearchableConfigurable, Configurable.N
                                                     JactlBundle.message("jactl.configuration.globals.script.selector.description"),
                                                     null,
                                                     FileChooserDescriptorFactory.createSingleFileDescriptor());
+      // 0 means use the default (see JpsJactlSettings.getBuildParallelism())
+      buildParallelism = new JSpinner(new SpinnerNumberModel(0, 0, 256, 1));
     }
   }
 }
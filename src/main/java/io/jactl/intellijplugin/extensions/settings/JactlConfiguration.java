@@ -35,6 +35,7 @@ public final class JactlConfiguration implements PersistentStateComponent<JpsJac
 
   private String             globalVariablesScript;
   private boolean            verboseEnabled;
+  private int                buildParallelism;
 
   public static JactlConfiguration getInstance(Project project) {
     return project.getService(JactlConfiguration.class);
@@ -45,12 +46,14 @@ public final class JactlConfiguration implements PersistentStateComponent<JpsJac
     JpsJactlSettings bean = new JpsJactlSettings();
     bean.globalVariablesScript = globalVariablesScript;
     bean.verboseEnable         = verboseEnabled;
+    bean.buildParallelism      = buildParallelism;
     return bean;
   }
 
   @Override
   public void loadState(@NotNull JpsJactlSettings state) {
     globalVariablesScript = state.globalVariablesScript;
+    buildParallelism      = state.buildParallelism;
   }
 
   public @Nullable String getGlobalVariablesScript() {
@@ -61,6 +64,10 @@ public final class JactlConfiguration implements PersistentStateComponent<JpsJac
     return verboseEnabled;
   }
 
+  public int getBuildParallelism() {
+    return buildParallelism;
+  }
+
   public Map<String,Object> getGlobals() {
     return JactlPlugin.getGlobals(globalVariablesScript);
   }
@@ -72,4 +79,8 @@ public final class JactlConfiguration implements PersistentStateComponent<JpsJac
   public void setVerboseEnabled(boolean verboseEnabled) {
     this.verboseEnabled = verboseEnabled;
   }
-}
\ No newline at end of file
+
+  public void setBuildParallelism(int buildParallelism) {
+    this.buildParallelism = buildParallelism;
+  }
+}
@@ -0,0 +1,33 @@
+package io.jactl.intellijplugin.psi;
+
+import com.intellij.extapi.psi.StubBasedPsiElementBase;
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.psi.stubs.StubElement;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Base class for Jactl PSI elements that can be created from the stub tree
+ * (see JactlStubElementType)
+ */
+public abstract class AbstractJactlStubPsiElement<T extends StubElement> extends StubBasedPsiElementBase<T> implements JactlPsiElement {
+
+  public AbstractJactlStubPsiElement(@NotNull T stub, @NotNull IStubElementType<?,?> nodeType) {
+    super(stub, nodeType);
+  }
+
+  public AbstractJactlStubPsiElement(@NotNull ASTNode node) {
+    super(node);
+  }
+
+  @Override
+  public void subtreeChanged() {
+    super.subtreeChanged();
+    leafSubtreesChanged();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + getElementType() + ")";
+  }
+}
@@ -28,7 +28,7 @@ public class JactlExprElementType extends IElementType {
   public static IElementType CALL_EXPR           = new JactlExprElementType("CALL_EXPR");
   public static IElementType METHOD_CALL_EXPR    = new JactlExprElementType("METHOD_CALL_EXPR");
   public static IElementType CLASS_PATH_EXPR     = new JactlExprElementType("CLASS_PATH_EXPR");
-  public static IElementType CLOSURE             = new JactlExprElementType("CLOSURE");
+  public static IElementType CLOSURE             = new JactlReparseableElementType("CLOSURE", "x = ");
   public static IElementType PRINT_EXPR          = new JactlExprElementType("PRINT_EXPR");
   public static IElementType BREAK_EXPR          = new JactlExprElementType("BREAK_EXPR");
   public static IElementType CONTINUE_EXPR       = new JactlExprElementType("CONTINUE_EXPR");
@@ -43,6 +43,14 @@ public class JactlExprElementType extends IElementType {
   public static IElementType SWITCH_CASE_EXPR    = new JactlExprElementType("SWITCH_CASE_EXPR");
   public static IElementType SWITCH_CONSTRUCTOR_PATTERN_EXPR = new JactlExprElementType("SWITCH_CONSTRUCTOR_PATTERN_EXPR");
 
+  /**
+   * Whether type is an expression type. CLOSURE is a JactlReparseableElementType rather than
+   * a JactlExprElementType so can't just use instanceof.
+   */
+  public static boolean isExpr(IElementType type) {
+    return type instanceof JactlExprElementType || type == CLOSURE;
+  }
+
   public JactlExprElementType(String name) {
     super(name, JactlLanguage.INSTANCE);
   }
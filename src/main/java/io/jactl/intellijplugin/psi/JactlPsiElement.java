@@ -5,24 +5,42 @@ import io.jactl.JactlUserDataHolder;
 import io.jactl.intellijplugin.JactlAstKey;
 import io.jactl.intellijplugin.JactlFile;
 import io.jactl.intellijplugin.JactlParserAdapter;
+import io.jactl.intellijplugin.psi.impl.JactlPsiIdentifierImpl;
 
+/**
+ * Jactl PSI element. The default methods are shared by the AST based and stub based
+ * element classes (AbstractJactlPsiElement and AbstractJactlStubPsiElement).
+ */
 public interface JactlPsiElement extends PsiElement  {
-  JactlFile   getFile();
-  JactlAstKey getAstKey();
-
-  default JactlFile _getFile() {
+  default JactlFile getFile() {
     return (JactlFile) getContainingFile();
   }
 
-  default String getSourceCode() {
-    JactlFile file = getFile();
-    if (file == null) {
-      return null;
-    }
-    return file.getText().intern();
+  default JactlAstKey getAstKey() {
+    return new JactlAstKey(getNode().getElementType(), getNode().getStartOffset());
+  }
+
+  /**
+   * Get the key for the AST node packed into a long (see JactlAstKey.pack()). Used for
+   * looking up the AST node without allocating a JactlAstKey.
+   */
+  default long getPackedAstKey() {
+    return JactlAstKey.pack(getNode().getElementType(), getNode().getStartOffset());
   }
 
   default JactlUserDataHolder getJactlAstNode() {
-    return JactlParserAdapter.getJactlAstNode(getFile(), getSourceCode(), getAstKey());
+    return JactlParserAdapter.getJactlAstNode(getFile(), getPackedAstKey());
+  }
+
+  /**
+   * To be invoked from subtreeChanged(). Intellij doesn't automatically invoke anything for
+   * tree change events on leaf nodes so we pass the event on to our identifier children.
+   */
+  default void leafSubtreesChanged() {
+    for (PsiElement child = getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child instanceof JactlPsiIdentifierImpl) {
+        ((JactlPsiIdentifierImpl) child).subtreeChanged();
+      }
+    }
   }
 }
@@ -10,6 +10,7 @@ import io.jactl.JactlUserDataHolder;
 import io.jactl.Stmt;
 import io.jactl.intellijplugin.*;
 import io.jactl.intellijplugin.common.JactlPlugin;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
 import io.jactl.intellijplugin.psi.impl.JactlPsiNameImpl;
 import io.jactl.resolver.Resolver;
 import io.jactl.runtime.ClassDescriptor;
@@ -97,8 +98,7 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
   }
 
   protected @Nullable PsiElement _resolve() {
-    String              source  = psiElement.getSourceCode();
-    JactlUserDataHolder astNode = JactlParserAdapter.getJactlAstNode(psiElement.getFile(), source, psiElement.getAstKey());
+    JactlUserDataHolder astNode = JactlParserAdapter.getJactlAstNode(psiElement.getFile(), psiElement.getAstKey());
     if (astNode == null) {
       //LOG.warn("Could not find Jactl AST Node for " + psiElement);
       return null;
@@ -128,12 +128,12 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
           if (inner == null) {
             return null;
           }
-          return JactlUtils.getNameElementForPsiElementInTree(inner.getUserData(JactlAstKey.class));
+          return JactlUtils.getNameElementForPsiElementInTree(getFileForClass(descriptor), inner.getUserData(JactlAstKey.class));
         }
         decl = funDecl.declExpr.varDecl;
       }
       JactlAstKey key = decl.getUserData(JactlAstKey.class);
-      return JactlUtils.getNameElementForPsiElementInTree(key);
+      return JactlUtils.getNameElementForPsiElementInTree(getFileForClass(descriptor), key);
     }
 
     // If we are part of a class path expression then see if we point to a valid class
@@ -147,12 +147,17 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
         }
       }
       if (classDecl == null) {
+        // Use stub index if possible so that we don't have to parse and resolve the file with the class
+        JactlPsiClassDeclImpl declaration = JactlUtils.findClassDeclaration(getElement().getProject(), expr.fullClassName());
+        if (declaration != null) {
+          return declaration.getNameElement();
+        }
         classDecl = JactlParserAdapter.getClassDecl(getElement().getProject(), expr.fullClassName());
       }
       if (classDecl == null) {
         return null;
       }
-      return JactlUtils.getNameElementForPsiElementInTree(classDecl.getUserData(JactlAstKey.class));
+      return JactlUtils.getNameElementForPsiElementInTree(getFileForClass(classDecl.classDescriptor), classDecl.getUserData(JactlAstKey.class));
     }
 
     if (astNode instanceof JactlType) {
@@ -169,7 +174,7 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
         //LOG.warn("Declaration has no AST Key set: declaration=" + classDecl);
         return null;
       }
-      return JactlUtils.getNameElementForPsiElementInTree(declarationKey);
+      return JactlUtils.getNameElementForPsiElementInTree(getFileForClass(descriptor), declarationKey);
     }
 
     // Key to node where varDecl or funDecl or classDecl is
@@ -180,13 +185,13 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
 
     if (declaration instanceof ClassDescriptor) {
       ClassDescriptor descriptor = (ClassDescriptor) declaration;
-      declaration = JactlParserAdapter.getClassDecl(psiElement.getFile(), source, descriptor.getNamePath());
+      declaration = JactlParserAdapter.getClassDecl(psiElement.getFile(), descriptor.getNamePath());
     }
 
     // If we point to a class
     if (declaration instanceof Expr.VarDecl && ((Expr.VarDecl) declaration).classDescriptor != null) {
       Expr.VarDecl varDecl = (Expr.VarDecl) declaration;
-      declaration = JactlParserAdapter.getClassDecl(psiElement.getFile(), source, varDecl.classDescriptor.getNamePath());
+      declaration = JactlParserAdapter.getClassDecl(psiElement.getFile(), varDecl.classDescriptor.getNamePath());
     }
 
     if (declaration == null) {
@@ -211,19 +216,21 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
       return null;
     }
 
-    // Now we need to find the PSI element in our PSI tree
-    return JactlUtils.getNameElementForPsiElementInTree(declarationKey);
+    // Now we need to find the PSI element in our PSI tree (or in the tree of the file
+    // declaring the class if we point to a class)
+    JactlFile declaringFile = declaration instanceof Stmt.ClassDecl ? getFileForClass(((Stmt.ClassDecl) declaration).classDescriptor)
+                                                                    : psiElement.getFile();
+    return JactlUtils.getNameElementForPsiElementInTree(declaringFile, declarationKey);
   }
 
-  private static Stmt.@Nullable ClassDecl getClassDecl(ClassDescriptor descriptor) {
+  private Stmt.@Nullable ClassDecl getClassDecl(ClassDescriptor descriptor) {
     Stmt.ClassDecl classDecl = descriptor.getUserData(Stmt.ClassDecl.class);
     if (classDecl == null) {
       LOG.warn("ClassDescriptor for parent (" + descriptor.getPrettyName() + ") has no ClassDecl");
       return null;
     }
     // Get the ClassDecl again in case file needs reparsing due to changes
-    JactlAstKey classDeclKey = classDecl.getUserData(JactlAstKey.class);
-     classDecl = JactlParserAdapter.getClassDecl(classDeclKey.getFile(), classDeclKey.getFile().getText(), descriptor.getNamePath());
+    classDecl = JactlParserAdapter.getClassDecl(getFileForClass(descriptor), descriptor.getNamePath());
     if (classDecl == null) {
       LOG.warn("ClassDescriptor for parent (" + descriptor.getPrettyName() + ") still has no ClassDecl");
       return null;
@@ -231,6 +238,16 @@ public class JactlPsiReference extends PsiReferenceBase<PsiElement> implements P
     return classDecl;
   }
 
+  /**
+   * Get the file that declares the given class. Classes can come from other files so we
+   * find the file from the class name, falling back to our own file if there is no such
+   * file (e.g. for classes in a script that is not under a source root).
+   */
+  private JactlFile getFileForClass(ClassDescriptor descriptor) {
+    JactlFile file = descriptor == null ? null : JactlUtils.findFileForClass(psiElement.getProject(), descriptor.getPackagedName());
+    return file == null ? psiElement.getFile() : file;
+  }
+
   @Override
   public ResolveResult @NotNull [] multiResolve(boolean incompleteCode) {
     PsiElement resolved = resolve();
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.ICompositeElementType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IReparseableElementType;
+import io.jactl.intellijplugin.JactlHighlightingLexer;
+import io.jactl.intellijplugin.JactlLanguage;
+import io.jactl.intellijplugin.JactlParserAdapter;
+import io.jactl.intellijplugin.JactlTokeniser;
+import io.jactl.intellijplugin.JactlUtils;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Element type for brace delimited blocks (including function bodies) and closures.
+ * <p>When an edit is confined to such a node IntelliJ will ask us to reparse just the
+ * text of the node rather than the whole file. The Jactl parser can only parse whole
+ * scripts so we parse the text with a prefix that puts it into the right syntactic
+ * context (e.g. "if (true) " for a block) and then only build the PSI for the events
+ * that belong to the node itself.</p>
+ * <p>The whole file parse still builds these nodes eagerly so the nodes created via
+ * createCompositeNode() are already parsed.</p>
+ */
+public class JactlReparseableElementType extends IReparseableElementType implements ICompositeElementType {
+
+  private static final Key<Boolean> REPARSE_FAILED = Key.create("JACTL_REPARSE_FAILED");
+
+  private final String fragmentPrefix;
+
+  public JactlReparseableElementType(String name, String fragmentPrefix) {
+    super(name, JactlLanguage.INSTANCE);
+    this.fragmentPrefix = fragmentPrefix;
+  }
+
+  public String getFragmentPrefix() {
+    return fragmentPrefix;
+  }
+
+  @Override
+  public @NotNull ASTNode createCompositeNode() {
+    return new LazyParseableElement(this, null);
+  }
+
+  @Override
+  public boolean isReparseable(@NotNull ASTNode currentNode, @NotNull CharSequence newText, @NotNull Language fileLanguage, @NotNull Project project) {
+    // Only reparse nodes that are delimited by their own braces (not the statement lists within them)
+    // and never class bodies since their fields and methods are only recognised within a class declaration
+    if (!JactlUtils.isElementType(currentNode.getFirstChildNode(), JactlTokenTypes.LEFT_BRACE)) {
+      return false;
+    }
+    if (JactlUtils.isElementType(currentNode.getTreeParent(), JactlStmtElementType.CLASS_DECL)) {
+      return false;
+    }
+    return isParsable(currentNode.getTreeParent(), newText, fileLanguage, project);
+  }
+
+  @Override
+  public boolean isParsable(ASTNode parent, @NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+    return fileLanguage == JactlLanguage.INSTANCE && isBalanced(buffer);
+  }
+
+  @Override
+  public boolean isValidReparse(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
+    // Getting first child forces the parse of the new node
+    ASTNode firstChild = newNode.getFirstChildNode();
+    return newNode.getUserData(REPARSE_FAILED) == null && JactlUtils.isElementType(firstChild, JactlTokenTypes.LEFT_BRACE);
+  }
+
+  @Override
+  protected ASTNode doParseContents(@NotNull ASTNode chameleon, @NotNull PsiElement psi) {
+    Project        project   = psi.getProject();
+    JactlTokeniser tokeniser = new JactlTokeniser(project, fragmentPrefix);
+    PsiBuilder     builder   = PsiBuilderFactory.getInstance().createBuilder(project, chameleon, tokeniser, getLanguage(), chameleon.getChars());
+    if (!JactlParserAdapter.parseFragment(this, builder)) {
+      chameleon.putUserData(REPARSE_FAILED, Boolean.TRUE);
+    }
+    return builder.getTreeBuilt().getFirstChildNode();
+  }
+
+  /**
+   * Check that text starts with '{' and ends with its matching '}' without anything
+   * (such as an unterminated string or comment) that would change how the rest of
+   * the file is tokenised.
+   */
+  private static boolean isBalanced(CharSequence text) {
+    int length = text.length();
+    if (length < 2 || text.charAt(0) != '{' || text.charAt(length - 1) != '}') {
+      return false;
+    }
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(text, 0, length, 0);
+    int depth = 0;
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      if (type == JactlTokenTypes.LEFT_BRACE || type == JactlTokenTypes.DOLLAR_BRACE) {
+        depth++;
+      }
+      else if (type == JactlTokenTypes.RIGHT_BRACE) {
+        depth--;
+        if (depth == 0) {
+          // Must be the closing brace at the end of the text
+          return lexer.getTokenEnd() == length;
+        }
+      }
+    }
+    return false;
+  }
+}
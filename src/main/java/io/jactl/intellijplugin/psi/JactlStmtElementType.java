@@ -5,8 +5,8 @@ import io.jactl.intellijplugin.JactlLanguage;
 
 public class JactlStmtElementType extends IElementType {
   public static IElementType IMPORT_STMT   = new JactlStmtElementType("IMPORT_STMT");
-  public static IElementType CLASS_DECL    = new JactlStmtElementType("CLASS_DECL");
-  public static IElementType BLOCK         = new JactlStmtElementType("BLOCK");
+  public static IElementType CLASS_DECL    = new JactlStubElementType("CLASS_DECL");
+  public static IElementType BLOCK         = new JactlReparseableElementType("BLOCK", "if (true) ");
   public static IElementType PARAMS        = new JactlStmtElementType("PARAMS");
   public static IElementType EXPR_STMT     = new JactlStmtElementType("EXPR_STMT");
   public static IElementType VAR_DECL      = new JactlStmtElementType("VAR_DECL");
@@ -17,6 +17,15 @@ public class JactlStmtElementType extends IElementType {
   public static IElementType DO_UNTIL_STMT = new JactlStmtElementType("DO_WHILE_STMT");
   public static IElementType RETURN_STM    = new JactlStmtElementType("RETURN_STMT");
 
+  /**
+   * Whether type is a statement type. BLOCK is a JactlReparseableElementType and
+   * CLASS_DECL is a JactlStubElementType rather than a JactlStmtElementType so can't
+   * just use instanceof.
+   */
+  public static boolean isStmt(IElementType type) {
+    return type instanceof JactlStmtElementType || type instanceof JactlStubElementType || type == BLOCK;
+  }
+
   public JactlStmtElementType(String name) {
     super(name, JactlLanguage.INSTANCE);
   }
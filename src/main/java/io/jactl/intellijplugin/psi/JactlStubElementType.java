@@ -0,0 +1,78 @@
+package io.jactl.intellijplugin.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.stubs.*;
+import com.intellij.psi.tree.IElementType;
+import io.jactl.intellijplugin.JactlLanguage;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
+import io.jactl.intellijplugin.psi.stubs.JactlClassIndex;
+import io.jactl.intellijplugin.psi.stubs.JactlDeclarationStub;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Element type for class declarations (including inner classes) which we store in the
+ * stub tree so that JactlClassIndex can find them without parsing the file. Only classes
+ * have stubs: the methods and fields of a class in another file are always looked up via
+ * its resolved ClassDescriptor (see JactlClassCache) so stubs for them would never be used.
+ */
+public class JactlStubElementType extends IStubElementType<JactlDeclarationStub, JactlPsiElement> {
+
+  public JactlStubElementType(String name) {
+    super(name, JactlLanguage.INSTANCE);
+  }
+
+  @Override
+  public @NotNull String getExternalId() {
+    return "jactl." + this;
+  }
+
+  @Override
+  public @NotNull JactlPsiElement createPsi(@NotNull JactlDeclarationStub stub) {
+    return new JactlPsiClassDeclImpl(stub, this);
+  }
+
+  @Override
+  public @NotNull JactlDeclarationStub createStub(@NotNull JactlPsiElement psi, StubElement<? extends PsiElement> parentStub) {
+    ASTNode name = findName(psi.getNode(), JactlNameElementType.CLASS);
+    return new JactlDeclarationStub(parentStub, this, name == null ? null : name.getText());
+  }
+
+  @Override
+  public void serialize(@NotNull JactlDeclarationStub stub, @NotNull StubOutputStream dataStream) throws IOException {
+    dataStream.writeName(stub.getName());
+  }
+
+  @Override
+  public @NotNull JactlDeclarationStub deserialize(@NotNull StubInputStream dataStream, StubElement parentStub) throws IOException {
+    return new JactlDeclarationStub(parentStub, this, dataStream.readNameString());
+  }
+
+  @Override
+  public void indexStub(@NotNull JactlDeclarationStub stub, @NotNull IndexSink sink) {
+    if (stub.getName() != null) {
+      sink.occurrence(JactlClassIndex.KEY, stub.getClassPath());
+    }
+  }
+
+  /**
+   * Find name of given type. Names can be within a LIST so we look within any LIST
+   * children as well.
+   */
+  private static ASTNode findName(ASTNode node, IElementType nameType) {
+    for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+      if (child.getElementType() == nameType) {
+        return child;
+      }
+      if (child.getElementType() == JactlListElementType.LIST) {
+        ASTNode name = findName(child, nameType);
+        if (name != null) {
+          return name;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -21,9 +21,10 @@ public interface JactlTypes {
       if (type instanceof JactlTypeElementType)          { return new JactlPsiTypeImpl(node, type == JactlTypeElementType.BUILT_IN_TYPE); }
       if (type == JactlStmtElementType.VAR_DECL)         { return new JactlPsiDeclarationStmtImpl(node); }
       if (type == JactlStmtElementType.FUN_DECL)         { return new JactlPsiDeclarationStmtImpl(node); }
-      if (type instanceof JactlStmtElementType)          { return new JactlPsiStmtImpl(node); }
+      if (type == JactlStmtElementType.CLASS_DECL)       { return new JactlPsiClassDeclImpl(node); }
+      if (JactlStmtElementType.isStmt(type))             { return new JactlPsiStmtImpl(node); }
       if (type == JactlExprElementType.IDENTIFIER)       { return new JactlPsiIdentifierExprImpl(node); }
-      if (type instanceof JactlExprElementType)          { return new JactlPsiExprImpl(node); }
+      if (JactlExprElementType.isExpr(type))             { return new JactlPsiExprImpl(node); }
       if (type instanceof JactlListElementType)          { return new JactlPsiListImpl(node); }
       if (type instanceof JactlNameElementType) {
         JactlNameElementType nameType = (JactlNameElementType) type;
@@ -0,0 +1,83 @@
+package io.jactl.intellijplugin.psi.impl;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.psi.stubs.StubElement;
+import com.intellij.util.IncorrectOperationException;
+import io.jactl.JactlUserDataHolder;
+import io.jactl.Stmt;
+import io.jactl.intellijplugin.JactlUtils;
+import io.jactl.intellijplugin.psi.AbstractJactlStubPsiElement;
+import io.jactl.intellijplugin.psi.JactlStmtElementType;
+import io.jactl.intellijplugin.psi.interfaces.JactlPsiStmt;
+import io.jactl.intellijplugin.psi.stubs.JactlDeclarationStub;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class JactlPsiClassDeclImpl extends AbstractJactlStubPsiElement<JactlDeclarationStub> implements JactlPsiStmt {
+
+  public JactlPsiClassDeclImpl(@NotNull JactlDeclarationStub stub, @NotNull IStubElementType<?,?> nodeType) {
+    super(stub, nodeType);
+  }
+
+  public JactlPsiClassDeclImpl(@NotNull ASTNode node) {
+    super(node);
+  }
+
+  /**
+   * Get the class name (from the stub if the file has not been parsed)
+   */
+  public String getClassName() {
+    JactlDeclarationStub stub = getGreenStub();
+    if (stub != null) {
+      return stub.getName();
+    }
+    PsiElement name = getNameElement();
+    return name == null ? null : name.getText();
+  }
+
+  public PsiElement getNameElement() {
+    return JactlUtils.getFirstChild(this, JactlPsiNameImpl.class);
+  }
+
+  /**
+   * Get the inner classes declared directly within this class
+   */
+  public List<JactlPsiClassDeclImpl> getInnerClasses() {
+    List<JactlPsiClassDeclImpl> result = new ArrayList<>();
+    JactlDeclarationStub        stub   = getGreenStub();
+    if (stub != null) {
+      for (StubElement child: stub.getChildrenStubs()) {
+        if (child instanceof JactlDeclarationStub) {
+          result.add((JactlPsiClassDeclImpl) child.getPsi());
+        }
+      }
+      return result;
+    }
+    PsiElement body = JactlUtils.getFirstChild(this, JactlStmtElementType.BLOCK);
+    for (PsiElement child = body == null ? null : body.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child instanceof JactlPsiClassDeclImpl) {
+        result.add((JactlPsiClassDeclImpl) child);
+      }
+    }
+    return result;
+  }
+
+  public JactlPsiClassDeclImpl findInnerClass(String name) {
+    return getInnerClasses().stream().filter(inner -> name.equals(inner.getClassName())).findFirst().orElse(null);
+  }
+
+  @Override
+  public void delete() throws IncorrectOperationException {
+    // Special case for top level class where we need to also delete the file
+    JactlUserDataHolder node = getJactlAstNode();
+    if (node instanceof Stmt.ClassDecl && ((Stmt.ClassDecl) node).isPrimaryClass) {
+      getFile().delete();
+      return;
+    }
+    super.delete();
+  }
+}
@@ -19,7 +19,7 @@ public class JactlPsiIdentifierImpl extends LeafPsiElement implements JactlPsiId
   public JactlPsiIdentifierImpl(IElementType type,  CharSequence text) {
     super(type, text);
 //    this.reference = new JactlCachedValue<>(() -> new JactlPsiReference(this, getAstKey()));
-//    this.jactlFile = new JactlCachedValue<>(this::_getFile);
+//    this.jactlFile = new JactlCachedValue<>(this::getFile);
   }
 
   public JactlAstKey getAstKey() {
@@ -34,7 +34,17 @@ public class JactlPsiIdentifierImpl extends LeafPsiElement implements JactlPsiId
       JactlPsiTypeImpl type = (JactlPsiTypeImpl) getParent();
       return type.getAstKey();
     }
-    return new JactlAstKey(getFile(), getNode().getElementType(), getNode().getStartOffset());
+    return new JactlAstKey(getNode().getElementType(), getNode().getStartOffset());
+  }
+
+  @Override
+  public long getPackedAstKey() {
+    PsiElement parent = getParent();
+    if (parent instanceof JactlPsiIdentifierExprImpl || parent instanceof JactlPsiTypeImpl ||
+        parent.getNode().getElementType() == JactlExprElementType.CLASS_PATH_EXPR) {
+      return ((JactlPsiElement) parent).getPackedAstKey();
+    }
+    return JactlAstKey.pack(getNode().getElementType(), getNode().getStartOffset());
   }
 
   @Override public PsiReference getReference() {
@@ -70,12 +80,6 @@ public class JactlPsiIdentifierImpl extends LeafPsiElement implements JactlPsiId
 //    return "JactlPsiIdentifierImpl(" + getElementType() + resolvedToString + ")";
 //  }
 
-  @Override
-  public JactlFile getFile() {
-//   return jactlFile.getValue();
-    return _getFile();
-  }
-
   public void subtreeChanged() {
 //    reference.clear();
 //    jactlFile.clear();
@@ -0,0 +1,34 @@
+package io.jactl.intellijplugin.psi.stubs;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.stubs.StringStubIndexExtension;
+import com.intellij.psi.stubs.StubIndex;
+import com.intellij.psi.stubs.StubIndexKey;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Index of class declarations keyed on the class path within the file (A$B$C).
+ * The package comes from the location of the file rather than its contents so
+ * it is not part of the key.
+ */
+public class JactlClassIndex extends StringStubIndexExtension<JactlPsiClassDeclImpl> {
+  public static final StubIndexKey<String, JactlPsiClassDeclImpl> KEY = StubIndexKey.createIndexKey("jactl.class");
+
+  @Override
+  public @NotNull StubIndexKey<String, JactlPsiClassDeclImpl> getKey() {
+    return KEY;
+  }
+
+  @Override
+  public int getVersion() {
+    return super.getVersion() + 1;
+  }
+
+  public static Collection<JactlPsiClassDeclImpl> find(Project project, String classPath, GlobalSearchScope scope) {
+    return StubIndex.getElements(KEY, classPath, project, scope, JactlPsiClassDeclImpl.class);
+  }
+}
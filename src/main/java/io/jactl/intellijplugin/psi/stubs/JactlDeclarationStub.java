@@ -0,0 +1,33 @@
+package io.jactl.intellijplugin.psi.stubs;
+
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.psi.stubs.StubBase;
+import com.intellij.psi.stubs.StubElement;
+import io.jactl.intellijplugin.psi.JactlPsiElement;
+
+/**
+ * Stub for class declarations. We only keep the class name since that is all that is
+ * needed to find a class (see JactlClassIndex) and its inner classes in another file
+ * without having to parse it.
+ */
+public class JactlDeclarationStub extends StubBase<JactlPsiElement> {
+  private final String name;
+
+  public JactlDeclarationStub(StubElement parent, IStubElementType elementType, String name) {
+    super(parent, elementType);
+    this.name = name;
+  }
+
+  public String getName() { return name; }
+
+  /**
+   * Get the class path within the file (A$B$C)
+   */
+  public String getClassPath() {
+    StringBuilder sb = new StringBuilder(name);
+    for (StubElement parent = getParentStub(); parent instanceof JactlDeclarationStub; parent = parent.getParentStub()) {
+      sb.insert(0, '$').insert(0, ((JactlDeclarationStub) parent).getName());
+    }
+    return sb.toString();
+  }
+}
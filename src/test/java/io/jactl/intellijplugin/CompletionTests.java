@@ -20,6 +20,7 @@ package io.jactl.intellijplugin;
 import com.intellij.codeInsight.lookup.LookupElement;
 import com.intellij.openapi.application.WriteAction;
 import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.testFramework.ServiceContainerUtil;
 import com.intellij.testFramework.fixtures.BasePlatformTestCase;
@@ -602,6 +603,22 @@ public class CompletionTests extends BasePlatformTestCase {
     test("package org.test2.sub.<caret>", Stream.of());
   }
 
+  @Test public void testPackageTrie() throws IOException {
+    JactlPackageTrie trie = JactlPackageTrie.getInstance(getProject());
+    assertTrue(trie.contains("org.test2.sub"));
+    assertFalse(trie.contains("org.test2.sub.xxx"));
+    VirtualFile sub = myFixture.findFileInTempDir("org/test2/sub");
+    VirtualFile xxx = WriteAction.computeAndWait(() -> VfsUtil.createDirectoryIfMissing(sub, "xxx/yyy")).getParent();
+    assertTrue(trie.contains("org.test2.sub.xxx.yyy"));
+    WriteAction.runAndWait(() -> xxx.rename(this, "zzz"));
+    assertFalse(trie.contains("org.test2.sub.xxx"));
+    assertFalse(trie.contains("org.test2.sub.xxx.yyy"));
+    assertTrue(trie.contains("org.test2.sub.zzz.yyy"));
+    WriteAction.runAndWait(() -> xxx.delete(this));
+    assertFalse(trie.contains("org.test2.sub.zzz"));
+    assertTrue(trie.contains("org.test2.sub"));
+  }
+
   @Test public void testMethodsAndFields() {
     test("class X { int i }; X x = new X(); x.<caret>", "i", "fromJson", "className", "toJson", "toString");
     test("class X { int i }; new X().<caret>", "i", "fromJson", "className", "toJson", "toString");
@@ -0,0 +1,91 @@
+package io.jactl.intellijplugin;
+
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import io.jactl.intellijplugin.psi.JactlTokenTypes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HighlightingLexerTests extends BasePlatformTestCase {
+
+  private static class Tok {
+    IElementType type;
+    int          start;
+    int          end;
+    int          state;
+    Tok(IElementType type, int start, int end, int state) { this.type = type; this.start = start; this.end = end; this.state = state; }
+    @Override public String toString() { return type + "[" + start + "," + end + "]:" + state; }
+  }
+
+  private static List<Tok> lex(CharSequence text, int startOffset, int state) {
+    JactlHighlightingLexer lexer = new JactlHighlightingLexer();
+    lexer.start(text, startOffset, text.length(), state);
+    List<Tok> tokens = new ArrayList<>();
+    for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+      tokens.add(new Tok(type, lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getState()));
+    }
+    return tokens;
+  }
+
+  private static String types(String text) {
+    StringBuilder sb = new StringBuilder();
+    lex(text, 0, 0).forEach(t -> sb.append(t.type == JactlTokenTypes.WHITESPACE ? "" : t.type.toString().replace("JactlTokenType.", "") + "(" + text.substring(t.start, t.end) + ") "));
+    return sb.toString().trim();
+  }
+
+  /**
+   * Lex whole text and then restart the lexer from every token using the state recorded for
+   * that token and check that we get exactly the same tokens from that point on.
+   */
+  private static void checkRestartable(String text) {
+    List<Tok> tokens = lex(text, 0, 0);
+    int offset = 0;
+    for (Tok tok: tokens) {
+      assertEquals("Gap or overlap at " + tok, offset, tok.start);
+      assertTrue("Empty token " + tok, tok.end > tok.start);
+      offset = tok.end;
+    }
+    assertEquals(text.length(), offset);
+    for (int i = 0; i < tokens.size(); i++) {
+      List<Tok> restarted = lex(text, tokens.get(i).start, tokens.get(i).state);
+      assertEquals("Restart at token " + i + " (" + tokens.get(i) + ")", tokens.subList(i, tokens.size()).toString(), restarted.toString());
+    }
+  }
+
+  public void testSimple() {
+    assertEquals("DEF(def) IDENTIFIER(f) LEFT_PAREN(() INT(int) IDENTIFIER(x) RIGHT_PAREN()) LEFT_BRACE({) IDENTIFIER(x) STAR(*) INTEGER_CONST(2) RIGHT_BRACE(})",
+                 types("def f(int x) { x * 2 }"));
+    assertEquals("IDENTIFIER(x) EQUAL(=) LONG_CONST(12L) PLUS(+) DOUBLE_CONST(1.5D) PLUS(+) DECIMAL_CONST(1.25) COMMENT(// comment)",
+                 types("x = 12L + 1.5D + 1.25 // comment"));
+    assertEquals("IDENTIFIER(x) BANG_INSTANCE_OF(!instanceof) IDENTIFIER(Y) AND(and) IDENTIFIER(a) BANG_IN(!in) IDENTIFIER(b)",
+                 types("x !instanceof Y and a !in b"));
+  }
+
+  public void testStrings() {
+    assertEquals("STRING_CONST('abc') PLUS(+) STRING_CONST(\"xyz\")", types("'abc' + \"xyz\""));
+    assertEquals("EXPR_STRING_START(\"a) DOLLAR_IDENTIFIER($x) STRING_CONST( b) DOLLAR_BRACE(${) IDENTIFIER(y) PLUS(+) INTEGER_CONST(1) RIGHT_BRACE(}) EXPR_STRING_END(\")",
+                 types("\"a$x b${y + 1}\""));
+    assertEquals("EXPR_STRING_START(\"\"\"a) DOLLAR_BRACE(${) LEFT_BRACE({) IDENTIFIER(x) RIGHT_BRACE(}) RIGHT_BRACE(}) EXPR_STRING_END(\"\"\")",
+                 types("\"\"\"a${{x}}\"\"\""));
+  }
+
+  public void testRegex() {
+    assertEquals("IDENTIFIER(x) SLASH(/) IDENTIFIER(y) SLASH(/) INTEGER_CONST(2)", types("x / y / 2"));
+    assertEquals("IDENTIFIER(s) EQUAL_GRAVE(=~) STRING_CONST(/a.*b/i)", types("s =~ /a.*b/i"));
+    assertEquals("IDENTIFIER(s) EQUAL_GRAVE(=~) REGEX_SUBST_START(s/a/) EXPR_STRING_END(b/g)", types("s =~ s/a/b/g"));
+  }
+
+  public void testBadCharacter() {
+    List<Tok> tokens = lex("x = \u00a7", 0, 0);
+    assertEquals(TokenType.BAD_CHARACTER, tokens.get(tokens.size() - 1).type);
+  }
+
+  public void testRestartable() {
+    checkRestartable(ParsingTests.ALL_SYMBOL_EXAMPLE);
+    checkRestartable("def x = \"a${\"b${'c' + \"${d}\"}\"} e $f\"\n/x${y}/ + 1");
+    checkRestartable("def s = \"\"\"\n  multi ${ [a:1].map{ it }.size() }\n  line\"\"\"\nx =~ s/a${b}c/d${e}f/g");
+    checkRestartable("def bad = \"unterminated\nx = 'also unterminated\ny = /* unterminated comment");
+  }
+}
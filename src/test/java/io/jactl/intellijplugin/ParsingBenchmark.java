@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2022,2023,2024  James Crawford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.jactl.intellijplugin;
+
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+/**
+ * Timing based checks. These are not run as part of the normal test task since they depend
+ * on the load of the machine. Run them with: ./gradlew test -Pbenchmark
+ */
+public class ParsingBenchmark extends BasePlatformTestCase {
+
+  private static String generateScript(int lines) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i * 5 < lines; i++) {
+      sb.append("def f").append(i).append("(int x) {\n")
+        .append("  def y = x.toString().size() + 1\n")
+        .append("  def z = [1,2,3].map{ it * x }.filter{ it > y }.map{ it + 1 }.map{ it - 1 }.sum()\n")
+        .append("  return z + y * 2 - x / 3 + (x > 1 ? x : y) * ((x + y) * (z - x))\n")
+        .append("}\n");
+    }
+    return sb.toString();
+  }
+
+  private long timeParse(String text) {
+    long start = System.nanoTime();
+    PsiFile file = PsiFileFactory.getInstance(getProject()).createFileFromText("script.jactl", JactlLanguage.INSTANCE, text);
+    assertNotNull(file.getNode().getLastChildNode());
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Check that building the PSI scales linearly with the size of the file. Going from 10k lines
+   * to 50k lines should take around 5 times as long (a quadratic algorithm would take 25 times
+   * as long).
+   */
+  public void testParseScaling() {
+    timeParse(generateScript(2_000));     // Warm up
+    long time10k = timeParse(generateScript(10_000));
+    long time50k = timeParse(generateScript(50_000));
+    assertTrue("10k lines: " + time10k / 1_000_000 + "ms, 50k lines: " + time50k / 1_000_000 + "ms", time50k < time10k * 12);
+  }
+}
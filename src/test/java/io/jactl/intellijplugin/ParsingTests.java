@@ -1,8 +1,34 @@
 package io.jactl.intellijplugin;
 
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
 import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.ServiceContainerUtil;
 import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import io.jactl.Utils;
+import io.jactl.intellijplugin.extensions.settings.JactlConfiguration;
+import io.jactl.intellijplugin.jpsplugin.builder.JpsJactlSettings;
+import io.jactl.intellijplugin.psi.impl.JactlPsiClassDeclImpl;
+import io.jactl.intellijplugin.psi.stubs.JactlClassIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class ParsingTests extends BasePlatformTestCase {
 
@@ -42,6 +68,113 @@ public class ParsingTests extends BasePlatformTestCase {
                  getPsiTree());
   }
 
+  /**
+   * Edit inside a function body and a closure (so that only the block/closure is reparsed)
+   * and check that we end up with the same PSI as parsing the whole file from scratch.
+   */
+  public void testIncrementalReparse() {
+    String text = "def f(int x) {\n  def y = x + 1\n  return y\n}\n" +
+                  "def g() {\n  [1,2,3].map{ it * 2 }\n}\n";
+    psiFile = myFixture.configureByText("script.jactl", text);
+    Document document = PsiDocumentManager.getInstance(getProject()).getDocument(psiFile);
+    checkReparse(document, text.indexOf("return y"), "y = y * 2\n  ");
+    checkReparse(document, document.getText().indexOf("it * 2") + 2, " + 1");
+    checkReparse(document, document.getText().indexOf("[1,2,3]"), "if (true) { println 'x' }\n  ");
+  }
+
+  private void checkReparse(Document document, int offset, String insert) {
+    WriteCommandAction.writeCommandAction(getProject()).run(() -> document.insertString(offset, insert));
+    PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+    PsiFile fresh = PsiFileFactory.getInstance(getProject()).createFileFromText("script.jactl", JactlLanguage.INSTANCE, document.getText());
+    assertEquals(DebugUtil.psiToString(fresh, true).replaceAll("0x[0-9a-f]*",""), getPsiTree());
+  }
+
+  /**
+   * Classes (including inner classes) should be found from the stub index
+   */
+  public void testClassStubIndex() {
+    myFixture.configureByText("X.jactl", "class X {\n  int i = 0\n  def f() { i }\n  class Y {\n    class Z {}\n  }\n}\n");
+    Collection<JactlPsiClassDeclImpl> found = JactlClassIndex.find(getProject(), "X$Y$Z", GlobalSearchScope.allScope(getProject()));
+    assertEquals(1, found.size());
+    assertEquals("Z", found.iterator().next().getClassName());
+    JactlPsiClassDeclImpl x = JactlClassIndex.find(getProject(), "X", GlobalSearchScope.allScope(getProject())).iterator().next();
+    assertEquals(Utils.listOf("Y"), x.getInnerClasses().stream().map(JactlPsiClassDeclImpl::getClassName).collect(Collectors.toList()));
+    assertTrue(JactlClassIndex.find(getProject(), "Y", GlobalSearchScope.allScope(getProject())).isEmpty());
+  }
+
+  public void testClassNameIndexScan() {
+    Map<String,Boolean> classes = JactlClassNameIndex.scan("package a.b\nimport x.y.Z\nclass X {\n  def f() { \"${1}\" }\n  class Y {\n    class Z {}\n  }\n  class W {}\n}\n", "X");
+    assertEquals(new TreeSet<>(Utils.listOf("X", "X$Y", "X$Y$Z", "X$W")), new TreeSet<>(classes.keySet()));
+    assertFalse(classes.values().stream().anyMatch(isScript -> isScript));
+
+    classes = JactlClassNameIndex.scan("class Y {}\nclass Z { int i }\nnew Y()\n", "X");
+    assertEquals(new TreeSet<>(Utils.listOf("X", "Y", "Z")), new TreeSet<>(classes.keySet()));
+    assertTrue(classes.values().stream().allMatch(isScript -> isScript));
+  }
+
+  public void testClassNameIndexFindFiles() {
+    VirtualFile file = myFixture.addFileToProject("a/b/X.jactl", "package a.b\nclass X {\n  class Y {}\n}\n").getVirtualFile();
+    assertEquals(Utils.listOf(file), JactlClassNameIndex.findFiles(getProject(), "a.b", "X$Y"));
+    assertTrue(JactlClassNameIndex.findFiles(getProject(), "a", "X$Y").isEmpty());
+    assertTrue(JactlClassNameIndex.findFiles(getProject(), "a.b", "Y").isEmpty());
+  }
+
+  public void testClassDeclarationsHash() {
+    String source = "package a.b\nclass X {\n  int i = 1\n  def f(int x) { x + 1 }\n  class Y { def g = { it } }\n}\n";
+    int    hash   = JactlClassCache.declarationsHash(source);
+    assertEquals(hash, JactlClassCache.declarationsHash(source.replace("x + 1", "x + 2")));
+    assertEquals(hash, JactlClassCache.declarationsHash(source.replace("{ it }", "{ it * 2 }")));
+    assertEquals(hash, JactlClassCache.declarationsHash(source.replace("\n  int i", "\n  // comment\n  int i")));
+    assertFalse(hash == JactlClassCache.declarationsHash(source.replace("int x", "long x")));
+    assertFalse(hash == JactlClassCache.declarationsHash(source.replace("int i", "long i")));
+    assertFalse(hash == JactlClassCache.declarationsHash(source.replace("class Y", "class Z")));
+  }
+
+  public void testGlobalsIdentifiers() {
+    assertEquals(new TreeSet<>(Utils.listOf("x", "y", "f", "z")), new TreeSet<>(JactlGlobalsCache.identifiers("def x = y + 1\ndef f() { \"${z}\" }\n")));
+    Map<String,Object> globals = new HashMap<>();
+    globals.put("a", 1);
+    globals.put("b", "abc");
+    assertNull(JactlGlobalsCache.typeOf(globals, "c"));
+    assertEquals(JactlGlobalsCache.typeOf(globals, "a"), JactlGlobalsCache.typeOf(Collections.singletonMap("a", 2), "a"));
+    assertFalse(JactlGlobalsCache.typeOf(globals, "a").equals(JactlGlobalsCache.typeOf(globals, "b")));
+  }
+
+  /**
+   * All parses share the project JactlContext (see JactlContextService) so parsing on several
+   * threads at once should give the same results as parsing on one thread.
+   */
+  public void testConcurrentParsesShareContext() throws Exception {
+    List<String> sources = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      sources.add("package a.b\nimport x.y.Z\nclass X" + i + " {\n  int i = " + i + "\n  def f(x) { x + i }\n  class Y { String s = \"${i}\" }\n}\n");
+      sources.add("def x = [" + i + "]\nclass Z { int j }\nx.map{ it * 2 }.each{ println it }\nint y = \n");
+    }
+    List<String>    expected = sources.stream().map(source -> describe(new JactlParseCache.Entry(getProject(), source))).collect(Collectors.toList());
+    assertSame(JactlContextService.getInstance(getProject()).getJactlContext(), new JactlParseCache.Entry(getProject(), sources.get(0)).jactlContext);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (int n = 0; n < 10; n++) {
+        for (String source: sources) {
+          futures.add(executor.submit(() -> describe(new JactlParseCache.Entry(getProject(), source))));
+        }
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals(expected.get(i % sources.size()), futures.get(i).get(30, TimeUnit.SECONDS));
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String describe(JactlParseCache.Entry entry) {
+    return entry.builder.getEvents().stream()
+                        .map(e -> e.isToken() ? e.toString() : e.getMarker().type + (e.isStart() ? "<" : ">"))
+                        .collect(Collectors.joining(" ")) + " " + entry.builder.errors;
+  }
+
   public void testBadRegex()             { configureWith("/x/inQ"); }
   public void testGoodRegex()            { configureWith("/x/i"); }
   public void testDoUntil()              { configureWith("do{}until(true)"); }
@@ -116,4 +249,31 @@ public class ParsingTests extends BasePlatformTestCase {
     String text = ALL_SYMBOL_EXAMPLE;
     myFixture.configureByText("script.jactl", text);
   }
+
+  public void testGlobalsChangeOnlyResolvesAffectedFiles() throws IOException {
+    File temp = File.createTempFile("globals", "jactl");
+    temp.deleteOnExit();
+    try (OutputStream outputStream = new FileOutputStream(temp)) {
+      outputStream.write("[ x:1, y:2 ]".getBytes());
+    }
+    JpsJactlSettings settings = new JpsJactlSettings();
+    settings.globalVariablesScript = temp.getAbsolutePath();
+    JactlConfiguration jactlConfiguration = new JactlConfiguration();
+    jactlConfiguration.loadState(settings);
+    ServiceContainerUtil.registerOrReplaceServiceInstance(getProject(), JactlConfiguration.class, jactlConfiguration, getTestRootDisposable());
+    VirtualFile globals = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(temp);
+    assertNotNull(globals);
+
+    JactlFile a = (JactlFile) myFixture.addFileToProject("a.jactl", "x + 1\n");
+    JactlFile b = (JactlFile) myFixture.addFileToProject("b.jactl", "y + 1\n");
+    JactlParserAdapter.ParsedScript parsedA = JactlParserAdapter.getParsedScript(a);
+    JactlParserAdapter.ParsedScript parsedB = JactlParserAdapter.getParsedScript(b);
+
+    // Change type of x only so only a.jactl needs to be resolved again
+    WriteAction.run(() -> VfsUtil.saveText(globals, "[ x:'one', y:2 ]"));
+    PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+
+    assertNotSame(parsedA, JactlParserAdapter.getParsedScript(a));
+    assertSame(parsedB, JactlParserAdapter.getParsedScript(b));
+  }
 }
@@ -0,0 +1,38 @@
+package io.jactl.intellijplugin.jpsplugin.builder;
+
+import io.jactl.*;
+import io.jactl.intellijplugin.common.JactlPlugin;
+import io.jactl.resolver.Resolver;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+
+public class JactlDependenciesTests extends TestCase {
+
+  private static final String SOURCE = "class X {\n  int i = 1\n  def f(x) { x + 1 }\n}\n";
+
+  private static String signature(String source) {
+    JactlContext   context = JactlContext.create().build();
+    Parser         parser  = new Parser(new BuilderImpl(new Tokeniser(source)), context, "");
+    Stmt.ClassDecl script  = parser.parseScriptOrClass(JactlPlugin.SCRIPT_PREFIX + "X");
+    assertTrue(new Resolver(context, Collections.emptyMap(), script.location).resolveScriptOrClass(script, true, JactlPlugin.SCRIPT_PREFIX + "X", "").isEmpty());
+    new Analyser(context).analyseClass(script);
+    return JactlDependencies.signature(script.classDescriptor, source);
+  }
+
+  public void testBodyChangeKeepsSignature() {
+    assertEquals(signature(SOURCE), signature(SOURCE.replace("x + 1", "x + 2")));
+  }
+
+  public void testSignatureChange() {
+    assertFalse(signature(SOURCE).equals(signature(SOURCE.replace("def f(x)", "def f(int x)"))));
+    assertFalse(signature(SOURCE).equals(signature(SOURCE.replace("int i", "long i"))));
+  }
+
+  /**
+   * A method becoming async changes how calls to it are compiled so counts as a signature change
+   */
+  public void testAsyncChangesSignature() {
+    assertFalse(signature(SOURCE).equals(signature(SOURCE.replace("x + 1", "sleep(0, x) + 1"))));
+  }
+}